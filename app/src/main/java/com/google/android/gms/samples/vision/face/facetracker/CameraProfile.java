@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.google.android.gms.common.images.Size;
+import com.google.android.gms.vision.face.FaceDetector;
+
+/**
+ * Last known good camera and detector configuration for one camera facing on this device.  The
+ * profile is saved once the pipeline has been measured, and used on the next launch to start
+ * directly with the negotiated preview size and detector settings instead of the defaults.<p>
+ *
+ * The detection latency is kept separately for each detector mode.  A device on which the
+ * preferred mode was measured to be too slow starts in fast mode instead, but every few launches
+ * the preferred mode is tried again, so that a downgrade caused by a bad run is not permanent.<p>
+ *
+ * Profiles are tied to the build fingerprint, so a profile restored from a backup of another
+ * device, or from before a system update, is ignored.
+ */
+class CameraProfile {
+    private static final String PREFERENCES_NAME = "camera_profile";
+
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_PREVIEW_WIDTH = "previewWidth";
+    private static final String KEY_PREVIEW_HEIGHT = "previewHeight";
+    private static final String KEY_REQUESTED_FPS = "requestedFps";
+    private static final String KEY_LATENCY_CLASS = "latencyClass.mode";
+    private static final String KEY_FALLBACK_LAUNCHES = "fallbackLaunches";
+
+    // Latency classes of the detector, measured as average detection time per frame
+    static final int LATENCY_UNKNOWN = 0;
+    static final int LATENCY_FAST = 1;
+    static final int LATENCY_MEDIUM = 2;
+    static final int LATENCY_SLOW = 3;
+
+    // Upper bounds of the fast and medium latency classes, in milliseconds
+    private static final float FAST_LATENCY_MS = 40.0f;
+    private static final float MEDIUM_LATENCY_MS = 80.0f;
+    // Number of launches in fast mode after which the preferred mode is measured again
+    private static final int REVALIDATE_LAUNCHES = 5;
+
+    private final int mFacing;
+    private final int mPreferredMode;
+    private Size mPreviewSize;
+    private float mRequestedFps;
+    private int mPreferredLatencyClass;
+    private int mFastLatencyClass;
+    private int mFallbackLaunches;
+
+    private CameraProfile(int facing, int preferredMode, Size previewSize, float requestedFps,
+                          int preferredLatencyClass, int fastLatencyClass, int fallbackLaunches) {
+        mFacing = facing;
+        mPreferredMode = preferredMode;
+        mPreviewSize = previewSize;
+        mRequestedFps = requestedFps;
+        mPreferredLatencyClass = preferredLatencyClass;
+        mFastLatencyClass = fastLatencyClass;
+        mFallbackLaunches = fallbackLaunches;
+    }
+
+    /**
+     * Loads the saved profile for the camera facing, or returns a profile holding the supplied
+     * defaults if none was saved on this device yet.
+     *
+     * @param preferredMode detector mode to use unless it was measured to be too slow
+     */
+    static CameraProfile load(Context context, int facing, Size defaultPreviewSize,
+                              float defaultFps, int preferredMode) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        String prefix = prefix(facing);
+
+        if (!Build.FINGERPRINT.equals(preferences.getString(prefix + KEY_FINGERPRINT, null))) {
+            return new CameraProfile(facing, preferredMode, defaultPreviewSize, defaultFps,
+                    LATENCY_UNKNOWN, LATENCY_UNKNOWN, 0);
+        }
+
+        Size previewSize = new Size(
+                preferences.getInt(prefix + KEY_PREVIEW_WIDTH, defaultPreviewSize.getWidth()),
+                preferences.getInt(prefix + KEY_PREVIEW_HEIGHT, defaultPreviewSize.getHeight()));
+        return new CameraProfile(facing, preferredMode, previewSize,
+                preferences.getFloat(prefix + KEY_REQUESTED_FPS, defaultFps),
+                preferences.getInt(prefix + KEY_LATENCY_CLASS + preferredMode, LATENCY_UNKNOWN),
+                preferences.getInt(prefix + KEY_LATENCY_CLASS + FaceDetector.FAST_MODE,
+                        LATENCY_UNKNOWN),
+                preferences.getInt(prefix + KEY_FALLBACK_LAUNCHES, 0));
+    }
+
+    /**
+     * Writes the profile asynchronously.
+     */
+    void save(Context context) {
+        String prefix = prefix(mFacing);
+        SharedPreferences.Editor editor =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                        .putString(prefix + KEY_FINGERPRINT, Build.FINGERPRINT)
+                        .putInt(prefix + KEY_PREVIEW_WIDTH, mPreviewSize.getWidth())
+                        .putInt(prefix + KEY_PREVIEW_HEIGHT, mPreviewSize.getHeight())
+                        .putFloat(prefix + KEY_REQUESTED_FPS, mRequestedFps)
+                        .putInt(prefix + KEY_LATENCY_CLASS + mPreferredMode,
+                                mPreferredLatencyClass)
+                        .putInt(prefix + KEY_FALLBACK_LAUNCHES, mFallbackLaunches);
+        if (mPreferredMode != FaceDetector.FAST_MODE) {
+            editor.putInt(prefix + KEY_LATENCY_CLASS + FaceDetector.FAST_MODE, mFastLatencyClass);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Updates the profile with the measurements of the current run.
+     *
+     * @param previewSize      preview size negotiated by the camera
+     * @param detectorMode     detector mode the measurements were taken with
+     * @param averageLatencyMs average detection time per frame
+     */
+    void update(Size previewSize, int detectorMode, float averageLatencyMs) {
+        mPreviewSize = previewSize;
+
+        int latencyClass;
+        if (averageLatencyMs < FAST_LATENCY_MS) {
+            latencyClass = LATENCY_FAST;
+        } else if (averageLatencyMs < MEDIUM_LATENCY_MS) {
+            latencyClass = LATENCY_MEDIUM;
+        } else {
+            latencyClass = LATENCY_SLOW;
+        }
+        if (detectorMode == mPreferredMode) {
+            mPreferredLatencyClass = latencyClass;
+            mFallbackLaunches = 0;
+        } else {
+            mFastLatencyClass = latencyClass;
+        }
+    }
+
+    Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    float getRequestedFps() {
+        return mRequestedFps;
+    }
+
+    /**
+     * Returns the latency class measured for the supplied detector mode.
+     */
+    int getLatencyClass(int detectorMode) {
+        return (detectorMode == mPreferredMode) ? mPreferredLatencyClass : mFastLatencyClass;
+    }
+
+    /**
+     * Returns the detector mode to start with.  Devices which were measured to be too slow for the
+     * preferred mode start in fast mode instead, except for every few launches, on which the
+     * preferred mode is measured again.
+     */
+    int getDetectorMode() {
+        if (mPreferredLatencyClass == LATENCY_SLOW && mFallbackLaunches < REVALIDATE_LAUNCHES) {
+            return FaceDetector.FAST_MODE;
+        }
+        return mPreferredMode;
+    }
+
+    /**
+     * Counts a launch which was started in the mode returned by {@link #getDetectorMode()}, to
+     * schedule the next measurement of the preferred mode.
+     */
+    void onLaunch() {
+        if (getDetectorMode() != mPreferredMode) {
+            mFallbackLaunches++;
+        }
+    }
+
+    private static String prefix(int facing) {
+        return "facing" + facing + ".";
+    }
+}
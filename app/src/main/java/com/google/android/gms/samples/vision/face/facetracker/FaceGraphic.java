@@ -16,13 +16,15 @@
 package com.google.android.gms.samples.vision.face.facetracker;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.drawable.Drawable;
-import android.support.v4.content.ContextCompat;
+import android.graphics.RectF;
 
+import com.google.android.gms.samples.vision.face.facetracker.ui.camera.FrameBudgetWatchdog;
 import com.google.android.gms.samples.vision.face.facetracker.ui.camera.GraphicOverlay;
+import com.google.android.gms.samples.vision.face.facetracker.util.FrameTracer;
 import com.google.android.gms.vision.face.Face;
 
 /**
@@ -36,14 +38,16 @@ class FaceGraphic extends GraphicOverlay.Graphic {
 
     // Factor that controls the size of overlay
     private static final float HEAD_SIZE_FACTOR = 2.0f;
-    // Thresholds to decide whether an eye is open, half open or closed
-    private static final float THRESHOLD_EYES_OPEN = 0.7f;
-    private static final float THRESHOLD_EYES_HALF_OPEN = 0.4f;
-    // Thresholds to decide whether a mouth is open, half open or closed
-    private static final float THRESHOLD_MOUTH_OPEN = 0.6f;
-    private static final float THRESHOLD_MOUTH_HALF_OPEN = 0.2f;
+    // Width of the composite mask drawn when the frame budget is exceeded
+    private static final int LOW_RES_MASK_WIDTH = 128;
+    // Width of the composite mask warped by the head pose
+    private static final int WARP_MASK_WIDTH = 512;
     // Mininum degree to tile the head
     private static final float DIFF_ROTATE_DEGREE = 2.0f;
+    // Changes of the face below which an update does not redraw the mask, in preview pixels and
+    // degrees
+    private static final float MOVE_TOLERANCE_PX = 0.5f;
+    private static final float TURN_TOLERANCE_DEGREE = 0.5f;
 
     private float mLastDegree = 0f;
 
@@ -61,17 +65,27 @@ class FaceGraphic extends GraphicOverlay.Graphic {
     private Paint mFacePositionPaint;
     private Paint mIdPaint;
     private Paint mBoxPaint;
+    private Paint mMaskPaint;
+    private final RectF mMaskRect = new RectF();
 
     private volatile Face mFace;
+    private volatile int mFrameId;
+    // Face the mask was last invalidated for, only used from the updating thread
+    private Face mInvalidatedFace;
+    // Face and frame the layer bounds were last computed for, drawn into the layer
+    private Face mLayerFace;
+    private int mLayerFrameId;
     private int mFaceId;
 
-    private Context mContext;
+    private FaceMask mMask;
+    private MaskMeshCache mMeshCache;
     private boolean mRotateEnabled = true;
+    private boolean mWarpEnabled = false;
 
     FaceGraphic(GraphicOverlay overlay, Context context) {
         super(overlay);
 
-        mContext = context;
+        mMask = new FaceMask(context);
 
         mCurrentColorIndex = (mCurrentColorIndex + 1) % COLOR_CHOICES.length;
         final int selectedColor = COLOR_CHOICES[mCurrentColorIndex];
@@ -87,35 +101,109 @@ class FaceGraphic extends GraphicOverlay.Graphic {
         mBoxPaint.setColor(selectedColor);
         mBoxPaint.setStyle(Paint.Style.STROKE);
         mBoxPaint.setStrokeWidth(BOX_STROKE_WIDTH);
+
+        mMaskPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
     }
 
     void setId(int id) {
         mFaceId = id;
     }
 
+    /**
+     * Enables warping the mask with the head turn and tilt, instead of only rotating it with the
+     * tilt.  Warping needs hardware acceleration on API 18 or higher, or software rendering.
+     */
+    void setWarpEnabled(boolean enabled) {
+        mWarpEnabled = enabled;
+        if (enabled && mMeshCache == null) {
+            mMeshCache = new MaskMeshCache();
+        }
+    }
+
     /**
      * Updates the face instance from the detection of the most recent frame.  Invalidates the
-     * relevant portions of the overlay to trigger a redraw.
+     * relevant portions of the overlay to trigger a redraw, unless the mask would look the same as
+     * when it was last invalidated, e.g. for the identical face handed back for a gated frame.
      */
-    void updateFace(Face face) {
+    void updateFace(Face face, int frameId) {
         mFace = face;
+        mFrameId = frameId;
+        Face previous = mInvalidatedFace;
+        if (previous != null && (face == previous || looksSame(previous, face))) {
+            return;
+        }
+        mInvalidatedFace = face;
+        FrameTracer.instant("invalidate", frameId);
         postInvalidate();
     }
 
+    /**
+     * Returns whether the mask drawn for both faces only differs by less than the tolerances.
+     */
+    private static boolean looksSame(Face a, Face b) {
+        return FaceMask.getState(a) == FaceMask.getState(b)
+                && Math.abs(a.getPosition().x - b.getPosition().x) < MOVE_TOLERANCE_PX
+                && Math.abs(a.getPosition().y - b.getPosition().y) < MOVE_TOLERANCE_PX
+                && Math.abs(a.getWidth() - b.getWidth()) < MOVE_TOLERANCE_PX
+                && Math.abs(a.getHeight() - b.getHeight()) < MOVE_TOLERANCE_PX
+                && Math.abs(a.getEulerY() - b.getEulerY()) < TURN_TOLERANCE_DEGREE
+                && Math.abs(a.getEulerZ() - b.getEulerZ()) < TURN_TOLERANCE_DEGREE;
+    }
+
+    /**
+     * Reports the area covered by the mask, enlarged so that it still contains the mask when it is
+     * rotated by the head tilt, and when it is magnified by the perspective of the warp.
+     */
+    @Override
+    public boolean getLayerBounds(RectF bounds) {
+        Face face = mFace;
+        mLayerFace = face;
+        mLayerFrameId = mFrameId;
+        if (face == null) {
+            return false;
+        }
+
+        float x = translateX(face.getPosition().x + face.getWidth() / 2);
+        float y = translateY(face.getPosition().y + face.getHeight() / 2);
+        float xOffset = scaleX(face.getWidth() / 2.0f) * HEAD_SIZE_FACTOR;
+        float yOffset = scaleY(face.getHeight() / 2.0f) * HEAD_SIZE_FACTOR;
+        float radius = (float) Math.hypot(xOffset, yOffset);
+        if (mWarpEnabled) {
+            radius *= MaskMeshCache.MAX_SCALE;
+        }
+        bounds.set(x - radius, y - radius, x + radius, y + radius);
+        return true;
+    }
+
     /**
      * Draws the face annotations for position on the supplied canvas.
      */
     @Override
     public void draw(Canvas canvas) {
-        Face face = mFace;
+        draw(canvas, mFace, mFrameId);
+    }
+
+    /**
+     * Draws the face the layer bounds were computed for, so that the layer always fits the mask.
+     */
+    @Override
+    public void drawLayer(Canvas canvas) {
+        draw(canvas, mLayerFace, mLayerFrameId);
+    }
+
+    private void draw(Canvas canvas, Face face, int frameId) {
         if (face == null) {
             return;
         }
 
+        FrameTracer.begin("FaceGraphic.draw", frameId);
+
         // Draws a circle at the position of the detected face, with the face's track id below.
         float x = translateX(face.getPosition().x + face.getWidth() / 2);
         float y = translateY(face.getPosition().y + face.getHeight() / 2);
 
+        // Drop the rotation first when the overlay is running over its frame budget
+        int level = getDegradationLevel();
         if (mRotateEnabled) {
             float degree = face.getEulerZ();
 
@@ -124,10 +212,13 @@ class FaceGraphic extends GraphicOverlay.Graphic {
                 mLastDegree = degree;
             }
         }
+        float rotation = (level >= FrameBudgetWatchdog.LEVEL_NO_ROTATION) ? 0 : mLastDegree;
 
-        if (mLastDegree != 0) {
+        // The warp mesh includes the tilt, so the canvas is only rotated for the flat mask
+        boolean rotateCanvas = !mWarpEnabled && rotation != 0;
+        if (rotateCanvas) {
             canvas.save();
-            canvas.rotate(mLastDegree, x, y);
+            canvas.rotate(rotation, x, y);
         }
 //        canvas.drawCircle(x, y, FACE_POSITION_RADIUS, mFacePositionPaint);
 //        canvas.drawText("id: " + mFaceId, x + ID_X_OFFSET, y + ID_Y_OFFSET, mIdPaint);
@@ -141,56 +232,32 @@ class FaceGraphic extends GraphicOverlay.Graphic {
         float bottom = y + yOffset;
         //canvas.drawRect(left, top, right, bottom, mBoxPaint);
 
-        // Draw from resource
-        Drawable head = ContextCompat.getDrawable(mContext, R.drawable.female_003_head);
-        head.setBounds((int)left, (int)top, (int)right, (int)bottom);
-        head.draw(canvas);
-
-        if (face.getIsLeftEyeOpenProbability() > THRESHOLD_EYES_OPEN || face.getIsLeftEyeOpenProbability() == -1.0) {
-            Drawable leftEye = ContextCompat.getDrawable(mContext, R.drawable.female_003_left_eye01);
-            leftEye.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            leftEye.draw(canvas);
-        } else if (face.getIsLeftEyeOpenProbability() < THRESHOLD_EYES_HALF_OPEN) {
-            Drawable leftEye = ContextCompat.getDrawable(mContext, R.drawable.female_003_left_eye02);
-            leftEye.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            leftEye.draw(canvas);
-        } else {
-            Drawable leftEye = ContextCompat.getDrawable(mContext, R.drawable.female_003_left_eye03);
-            leftEye.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            leftEye.draw(canvas);
-        }
-
-        if (face.getIsRightEyeOpenProbability() > THRESHOLD_EYES_OPEN || face.getIsRightEyeOpenProbability() == -1.0) {
-            Drawable rightEye = ContextCompat.getDrawable(mContext, R.drawable.female_003_right_eye01);
-            rightEye.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            rightEye.draw(canvas);
-        } else if (face.getIsRightEyeOpenProbability() < THRESHOLD_EYES_HALF_OPEN) {
-            Drawable rightEye = ContextCompat.getDrawable(mContext, R.drawable.female_003_right_eye02);
-            rightEye.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            rightEye.draw(canvas);
-        } else {
-            Drawable rightEye = ContextCompat.getDrawable(mContext, R.drawable.female_003_right_eye03);
-            rightEye.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            rightEye.draw(canvas);
-        }
-
+        // Draw from resource, or from a low resolution composite when over the frame budget
+        int state = FaceMask.getState(face);
+        if (mWarpEnabled) {
+            float yaw = (level >= FrameBudgetWatchdog.LEVEL_NO_ROTATION) ? 0 : face.getEulerY();
+            float[] mesh = mMeshCache.get(yaw, rotation);
+            Bitmap composite = mMask.getComposite(state,
+                    (level >= FrameBudgetWatchdog.LEVEL_LOW_RES_MASK)
+                            ? LOW_RES_MASK_WIDTH : WARP_MASK_WIDTH);
 
-        if (face.getIsSmilingProbability() > THRESHOLD_MOUTH_OPEN) {
-            Drawable mouth = ContextCompat.getDrawable(mContext, R.drawable.female_003_smile03);
-            mouth.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            mouth.draw(canvas);
-        } else if (face.getIsSmilingProbability() > THRESHOLD_MOUTH_HALF_OPEN) {
-            Drawable mouth = ContextCompat.getDrawable(mContext, R.drawable.female_003_smile02);
-            mouth.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            mouth.draw(canvas);
+            canvas.save();
+            canvas.translate(x, y);
+            canvas.scale(right - left, bottom - top);
+            canvas.drawBitmapMesh(composite, MaskMeshCache.MESH_WIDTH, MaskMeshCache.MESH_HEIGHT,
+                    mesh, 0, null, 0, mMaskPaint);
+            canvas.restore();
+        } else if (level >= FrameBudgetWatchdog.LEVEL_LOW_RES_MASK) {
+            Bitmap composite = mMask.getComposite(state, LOW_RES_MASK_WIDTH);
+            mMaskRect.set(left, top, right, bottom);
+            canvas.drawBitmap(composite, null, mMaskRect, mMaskPaint);
         } else {
-            Drawable mouth = ContextCompat.getDrawable(mContext, R.drawable.female_003_smile01);
-            mouth.setBounds((int) left, (int) top, (int) right, (int) bottom);
-            mouth.draw(canvas);
+            mMask.draw(canvas, state, (int) left, (int) top, (int) right, (int) bottom);
         }
 
-        if (mLastDegree != 0) {
+        if (rotateCanvas) {
             canvas.restore();
         }
+        FrameTracer.end("FaceGraphic.draw", frameId);
     }
 }
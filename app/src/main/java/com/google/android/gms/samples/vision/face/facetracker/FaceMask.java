@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.util.LruCache;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.google.android.gms.vision.face.Face;
+
+/**
+ * Layers of the mask drawn over a face: the head, both eyes and the mouth.  The eye and mouth
+ * layers each come in three variants, picked from the classification probabilities of the face.
+ * The combination of variants is encoded into a single state value, which can be used to draw the
+ * layers or to get a cached composite of all layers.  Composites are the same for every face, so
+ * they are shared by all masks.<p>
+ *
+ * Layers are drawn from the shared {@link MaskAtlas} when it is available, and from their
+ * drawable resources otherwise.
+ */
+class FaceMask {
+    // Thresholds to decide whether an eye is open, half open or closed
+    private static final float THRESHOLD_EYES_OPEN = 0.7f;
+    private static final float THRESHOLD_EYES_HALF_OPEN = 0.4f;
+    // Thresholds to decide whether a mouth is open, half open or closed
+    private static final float THRESHOLD_MOUTH_OPEN = 0.6f;
+    private static final float THRESHOLD_MOUTH_HALF_OPEN = 0.2f;
+
+    private static final int HEAD = R.drawable.female_003_head;
+    // Eye variants, indexed by open, closed and half open
+    private static final int[] LEFT_EYES = {
+        R.drawable.female_003_left_eye01,
+        R.drawable.female_003_left_eye02,
+        R.drawable.female_003_left_eye03
+    };
+    private static final int[] RIGHT_EYES = {
+        R.drawable.female_003_right_eye01,
+        R.drawable.female_003_right_eye02,
+        R.drawable.female_003_right_eye03
+    };
+    // Mouth variants, indexed by closed, half open and open
+    private static final int[] MOUTHS = {
+        R.drawable.female_003_smile01,
+        R.drawable.female_003_smile02,
+        R.drawable.female_003_smile03
+    };
+
+    private static final int VARIANTS = 3;
+    // Number of distinct states, used to key composites by size and state
+    private static final int STATES = VARIANTS * VARIANTS * VARIANTS;
+
+    // Size of the frame every layer is drawn in, which gives the aspect ratio of the mask
+    private static final int FRAME_WIDTH = 560;
+    private static final int FRAME_HEIGHT = 651;
+
+    // Memory shared by the composites of all masks, enough for every state of a few faces at the
+    // size used for the mesh warp
+    private static final int COMPOSITE_CACHE_BYTES = 12 * 1024 * 1024;
+
+    private static final LruCache<Integer, Bitmap> sComposites =
+            new LruCache<Integer, Bitmap>(COMPOSITE_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(Integer key, Bitmap value) {
+                    return value.getRowBytes() * value.getHeight();
+                }
+            };
+
+    private final Context mContext;
+    private final MaskAtlas mAtlas;
+    private final SparseIntArray mAtlasLayers = new SparseIntArray();
+    private final Paint mAtlasPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final Rect mSource = new Rect();
+    private final RectF mDestination = new RectF();
+    private final SparseArray<Drawable> mDrawables = new SparseArray<>();
+
+    FaceMask(Context context) {
+        mContext = context;
+        mAtlas = MaskAtlas.get(context);
+    }
+
+    /**
+     * Returns the state of the mask for the classifications of the supplied face.
+     */
+    static int getState(Face face) {
+        return (eyeVariant(face.getIsLeftEyeOpenProbability()) * VARIANTS
+                + eyeVariant(face.getIsRightEyeOpenProbability())) * VARIANTS
+                + mouthVariant(face.getIsSmilingProbability());
+    }
+
+    /**
+     * Draws all layers of the mask in the supplied state into the bounds.
+     */
+    void draw(Canvas canvas, int state, int left, int top, int right, int bottom) {
+        int mouth = state % VARIANTS;
+        int rightEye = (state / VARIANTS) % VARIANTS;
+        int leftEye = state / (VARIANTS * VARIANTS);
+
+        drawLayer(canvas, HEAD, left, top, right, bottom);
+        drawLayer(canvas, LEFT_EYES[leftEye], left, top, right, bottom);
+        drawLayer(canvas, RIGHT_EYES[rightEye], left, top, right, bottom);
+        drawLayer(canvas, MOUTHS[mouth], left, top, right, bottom);
+    }
+
+    /**
+     * Returns a bitmap of the supplied width, and the height matching the aspect ratio of the mask,
+     * with all layers of the mask in the supplied state composited into it.  Composites are kept
+     * in a cache shared by all masks, from which the least recently used ones are evicted.  This
+     * may be called concurrently from the layer workers of the overlay.
+     */
+    Bitmap getComposite(int state, int width) {
+        Integer key = width * STATES + state;
+        synchronized (sComposites) {
+            Bitmap composite = sComposites.get(key);
+            if (composite == null) {
+                int height = Math.round((float) width * FRAME_HEIGHT / FRAME_WIDTH);
+                composite = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                draw(new Canvas(composite), state, 0, 0, width, height);
+                sComposites.put(key, composite);
+            }
+            return composite;
+        }
+    }
+
+    private void drawLayer(Canvas canvas, int id, int left, int top, int right, int bottom) {
+        if (mAtlas != null) {
+            int layer = mAtlasLayers.get(id, Integer.MIN_VALUE);
+            if (layer == Integer.MIN_VALUE) {
+                layer = mAtlas.getLayerIndex(mContext.getResources().getResourceEntryName(id));
+                mAtlasLayers.put(id, layer);
+            }
+            if (layer >= 0) {
+                mAtlas.getSource(layer, mSource);
+                mAtlas.getDestination(layer, left, top, right, bottom, mDestination);
+                canvas.drawBitmap(mAtlas.getBitmap(), mSource, mDestination, mAtlasPaint);
+                return;
+            }
+        }
+
+        Drawable drawable = mDrawables.get(id);
+        if (drawable == null) {
+            drawable = ContextCompat.getDrawable(mContext, id);
+            mDrawables.put(id, drawable);
+        }
+        drawable.setBounds(left, top, right, bottom);
+        drawable.draw(canvas);
+    }
+
+    private static int eyeVariant(float probability) {
+        if (probability > THRESHOLD_EYES_OPEN || probability == -1.0) {
+            return 0;
+        } else if (probability < THRESHOLD_EYES_HALF_OPEN) {
+            return 1;
+        }
+        return 2;
+    }
+
+    private static int mouthVariant(float probability) {
+        if (probability > THRESHOLD_MOUTH_OPEN) {
+            return 2;
+        } else if (probability > THRESHOLD_MOUTH_HALF_OPEN) {
+            return 1;
+        }
+        return 0;
+    }
+}
@@ -22,7 +22,12 @@ import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.design.widget.Snackbar;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
@@ -31,14 +36,21 @@ import android.view.View;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.common.images.Size;
 import com.google.android.gms.vision.CameraSource;
 import com.google.android.gms.vision.Tracker;
 import com.google.android.gms.vision.face.Face;
 import com.google.android.gms.vision.face.FaceDetector;
+import com.google.android.gms.samples.vision.face.facetracker.ui.camera.Camera2FrameSource;
 import com.google.android.gms.samples.vision.face.facetracker.ui.camera.CameraSourcePreview;
+import com.google.android.gms.samples.vision.face.facetracker.ui.camera.FrameBudgetWatchdog;
+import com.google.android.gms.samples.vision.face.facetracker.ui.camera.FrameSource;
+import com.google.android.gms.samples.vision.face.facetracker.ui.camera.LegacyFrameSource;
 import com.google.android.gms.samples.vision.face.facetracker.ui.camera.GraphicOverlay;
+import com.google.android.gms.samples.vision.face.facetracker.util.FrameTracer;
 import com.google.android.gms.vision.face.LargestFaceFocusingProcessor;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -48,7 +60,15 @@ import java.io.IOException;
 public final class FaceTrackerActivity extends AppCompatActivity {
     private static final String TAG = "FaceTracker";
 
-    private CameraSource mCameraSource = null;
+    private volatile FrameSource mCameraSource = null;
+    private MotionGatedDetector mGatedDetector = null;
+    private PreviewSizeSelector mSizeSelector = new PreviewSizeSelector(MIN_FACE_SIZE_PX);
+    private CameraProfile mProfile = null;
+    private int mDetectorMode;
+    private boolean mResumed = false;
+    // Display rotation the camera source was last started for
+    private int mDisplayRotation;
+    private RenderBenchmark mRenderBenchmark = null;
 
     private CameraSourcePreview mPreview;
     private GraphicOverlay mGraphicOverlay;
@@ -57,6 +77,43 @@ public final class FaceTrackerActivity extends AppCompatActivity {
     // permission request codes need to be < 256
     private static final int RC_HANDLE_CAMERA_PERM = 2;
 
+    // Time the activity state was saved at, to measure the latency of recreating the activity
+    private static final String STATE_SAVED_AT = "savedAt";
+
+    // Rasterize each face into its own layer on worker threads, useful with many tracked faces
+    private static final boolean LAYERED_RENDERING = false;
+    // Warp the mask with the head turn and tilt instead of only rotating it with the tilt
+    private static final boolean MESH_WARP = false;
+    // Draw synthetic faces instead of starting the camera, logging render times per face count,
+    // rendering mode and mask path (rotated or mesh warp)
+    private static final boolean RENDER_BENCHMARK = false;
+    // Feed the luma plane from camera2 to the detector instead of NV21 frames from CameraSource
+    private static final boolean USE_CAMERA2 = false;
+
+    // Mean absolute luma difference per block below which a frame reuses the last detection
+    private static final float MOTION_GATE_THRESHOLD = 3.0f;
+    // Maximum number of consecutive frames for which detection may be skipped
+    private static final int MOTION_GATE_FORCED_INTERVAL = 10;
+    // Whether the motion gate only compares the area around the tracked face
+    private static final boolean MOTION_GATE_FACE_REGION_ONLY = true;
+
+    // Lower the preview resolution while the tracked face stays large enough
+    private static final boolean DYNAMIC_PREVIEW_SIZE = true;
+    // Minimum width of the tracked face, in preview pixels, when picking the preview size
+    private static final float MIN_FACE_SIZE_PX = 100.0f;
+
+    // Camera and detector settings used until a profile was saved for this device
+    private static final int CAMERA_FACING = CameraSource.CAMERA_FACING_FRONT;
+    private static final float DEFAULT_FPS = 15.0f;
+    private static final int DEFAULT_DETECTOR_MODE = FaceDetector.ACCURATE_MODE;
+    // Minimum number of detections to measure before the profile is saved
+    private static final int MIN_PROFILE_DETECTIONS = 30;
+
+    // Frame budget of the overlay, in refresh intervals of the display, so that a single dropped
+    // frame exceeds it.  Processing a camera frame is budgeted the frame interval of the profile's
+    // frame rate.
+    private static final float FRAME_BUDGET_INTERVALS = 1.5f;
+
     //==============================================================================================
     // Activity Methods
     //==============================================================================================
@@ -69,8 +126,34 @@ public final class FaceTrackerActivity extends AppCompatActivity {
         super.onCreate(icicle);
         setContentView(R.layout.main);
 
+        mDisplayRotation = getWindowManager().getDefaultDisplay().getRotation();
         mPreview = (CameraSourcePreview) findViewById(R.id.preview);
         mGraphicOverlay = (GraphicOverlay) findViewById(R.id.faceOverlay);
+        mGraphicOverlay.setLayeredRendering(LAYERED_RENDERING);
+        if (icicle != null && icicle.containsKey(STATE_SAVED_AT)) {
+            // Rotation is handled without recreating the activity.  Without rotation in the
+            // configChanges of the manifest, this measures the latency of recreating it instead.
+            mGraphicOverlay.timeFirstGraphic("Activity recreation",
+                    icicle.getLong(STATE_SAVED_AT));
+        }
+
+        // Start with the configuration which worked last time on this device, if any.  It is
+        // measured again while running and saved when the activity is paused.
+        mProfile = CameraProfile.load(getApplicationContext(), CAMERA_FACING,
+                mSizeSelector.getRequestedSize(), DEFAULT_FPS, DEFAULT_DETECTOR_MODE);
+        mSizeSelector.setInitialSize(mProfile.getPreviewSize());
+        mPreview.setPreviewSizeHint(mProfile.getPreviewSize());
+        float refreshRate = getWindowManager().getDefaultDisplay().getRefreshRate();
+        mGraphicOverlay.getFrameBudgetWatchdog().setBudgets(
+                FRAME_BUDGET_INTERVALS * 1000.0f / refreshRate,
+                1000.0f / mProfile.getRequestedFps());
+        mGraphicOverlay.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                toggleFrameTrace();
+                return true;
+            }
+        });
 
         // Check for the camera permission before accessing the camera.  If the
         // permission is not granted yet, request permission.
@@ -122,12 +205,20 @@ public final class FaceTrackerActivity extends AppCompatActivity {
     private void createCameraSource() {
 
         Context context = getApplicationContext();
-        FaceDetector detector = new FaceDetector.Builder(context)
+        mDetectorMode = mProfile.getDetectorMode();
+        mProfile.onLaunch();
+        FaceDetector faceDetector = new FaceDetector.Builder(context)
                 //.setLandmarkType(FaceDetector.ALL_LANDMARKS)
                 .setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
-                .setMode(FaceDetector.ACCURATE_MODE)
+                .setMode(mDetectorMode)
                 .build();
 
+        // Skip detection on frames where nothing moved, reusing the previous result instead.
+        MotionGatedDetector detector = new MotionGatedDetector(faceDetector,
+                MOTION_GATE_THRESHOLD, MOTION_GATE_FORCED_INTERVAL, MOTION_GATE_FACE_REGION_ONLY);
+        mGatedDetector = detector;
+        detector.setFrameBudgetWatchdog(mGraphicOverlay.getFrameBudgetWatchdog());
+
         detector.setProcessor(
                 new LargestFaceFocusingProcessor.Builder(detector, new GraphicFaceTracker(mGraphicOverlay))
                         .build());
@@ -144,11 +235,44 @@ public final class FaceTrackerActivity extends AppCompatActivity {
             Log.w(TAG, "Face detector dependencies are not yet available.");
         }
 
-        mCameraSource = new CameraSource.Builder(context, detector)
-                .setRequestedPreviewSize(640, 480)
-                .setFacing(CameraSource.CAMERA_FACING_FRONT)
-                .setRequestedFps(15.0f)
+        mCameraSource = buildCameraSource(mSizeSelector.getRequestedSize());
+    }
+
+    /**
+     * Builds a camera source around the existing detector, requesting the supplied preview size.
+     */
+    private FrameSource buildCameraSource(Size previewSize) {
+        if (USE_CAMERA2 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Camera2 traces the arrival of each image itself
+            mGatedDetector.setFrameTimeBase(-1);
+            return new Camera2FrameSource(getApplicationContext(), mGatedDetector, CAMERA_FACING,
+                    previewSize.getWidth(), previewSize.getHeight(), mProfile.getRequestedFps());
+        }
+
+        CameraSource cameraSource = new CameraSource.Builder(getApplicationContext(), mGatedDetector)
+                .setRequestedPreviewSize(previewSize.getWidth(), previewSize.getHeight())
+                .setFacing(CAMERA_FACING)
+                .setRequestedFps(mProfile.getRequestedFps())
                 .build();
+        LegacyFrameSource frameSource = new LegacyFrameSource(cameraSource);
+        mGatedDetector.setFrameTimeBase(frameSource.getFrameTimeBaseMillis());
+        return frameSource;
+    }
+
+    /**
+     * Replaces the camera source with one using a different preview size.  The detector, and with
+     * it the tracked face, is kept; only the camera is reopened and the overlay re-bound.
+     */
+    private void switchPreviewSize(Size previewSize) {
+        if (mCameraSource == null || !mResumed) {
+            return;
+        }
+        Log.i(TAG, "Switching preview size to " + previewSize);
+
+        mPreview.stop();
+        mCameraSource = buildCameraSource(previewSize);
+        startCameraSource();
+        mPreview.requestLayout();
     }
 
     /**
@@ -158,16 +282,108 @@ public final class FaceTrackerActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
 
+        mResumed = true;
+        if (RENDER_BENCHMARK) {
+            mRenderBenchmark = new RenderBenchmark(getApplicationContext(), mGraphicOverlay);
+            mRenderBenchmark.start();
+            return;
+        }
+        if (mGatedDetector != null) {
+            mGatedDetector.resetStats();
+        }
+        mDisplayRotation = getWindowManager().getDefaultDisplay().getRotation();
         startCameraSource();
     }
 
+    /**
+     * Notes the time when the activity is about to be recreated for a configuration change.
+     */
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && isChangingConfigurations()) {
+            outState.putLong(STATE_SAVED_AT, SystemClock.elapsedRealtime());
+        }
+    }
+
     /**
      * Stops the camera.
      */
     @Override
     protected void onPause() {
         super.onPause();
+        mResumed = false;
         mPreview.stop();
+        if (mRenderBenchmark != null) {
+            mRenderBenchmark.stop();
+            mRenderBenchmark = null;
+        }
+
+        if (mGatedDetector != null) {
+            Log.i(TAG, "Motion gate: " + mGatedDetector.getGatedFrameCount() + " frames gated, "
+                    + mGatedDetector.getDetectedFrameCount() + " frames detected");
+            saveProfile();
+        }
+
+        FrameBudgetWatchdog watchdog = mGraphicOverlay.getFrameBudgetWatchdog();
+        Log.i(TAG, "Frame budget: " + watchdog.getOverBudgetFrameCount() + " of "
+                + watchdog.getFrameCount() + " frames and " + watchdog.getOverBudgetDetectionCount()
+                + " of " + watchdog.getDetectionCount() + " detections over budget, "
+                + watchdog.getTransitionCount() + " level changes, level "
+                + watchdog.getLevel());
+    }
+
+    /**
+     * Saves the configuration of this run as the profile for the next launch, once enough frames
+     * were measured.  The preferences are written in the background.<p>
+     *
+     * The preview size is only taken over while the largest candidate is in use.  A smaller size
+     * only suits the user who was close to the camera in this run, and a launch starting there
+     * might not find a user further away, whose face would never be reported missing.
+     */
+    private void saveProfile() {
+        FrameSource cameraSource = mCameraSource;
+        if (cameraSource == null || cameraSource.getPreviewSize() == null
+                || mGatedDetector.getStatsDetectionCount() < MIN_PROFILE_DETECTIONS) {
+            return;
+        }
+
+        Size previewSize = mSizeSelector.isLargestSize()
+                ? cameraSource.getPreviewSize() : mProfile.getPreviewSize();
+        mProfile.update(previewSize, mDetectorMode, mGatedDetector.getAverageDetectionMillis());
+        mProfile.save(getApplicationContext());
+        Log.i(TAG, "Saved camera profile: " + mProfile.getPreviewSize() + " at "
+                + mGatedDetector.getFrameRate() + " fps, latency class "
+                + mProfile.getLatencyClass(mDetectorMode) + " in detector mode " + mDetectorMode);
+    }
+
+    /**
+     * Handles rotation without recreating the activity, so that the camera source, the detector and
+     * the tracked face survive.  Only the camera orientation and the overlay are re-bound.  Other
+     * handled changes, e.g. of the keyboard or the screen layout, leave the camera alone, as does
+     * any change while the activity is paused.
+     */
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+
+        int rotation = getWindowManager().getDefaultDisplay().getRotation();
+        if (rotation == mDisplayRotation || !mResumed || mCameraSource == null
+                || mRenderBenchmark != null) {
+            return;
+        }
+        mDisplayRotation = rotation;
+
+        // The mask of the old orientation is misplaced, so measure until the first new one
+        mGraphicOverlay.clear();
+        mGraphicOverlay.timeFirstGraphic("Rotation", SystemClock.elapsedRealtime());
+        try {
+            mPreview.restart();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to restart camera source.", e);
+            mCameraSource.release();
+            mCameraSource = null;
+        }
     }
 
     /**
@@ -229,6 +445,50 @@ public final class FaceTrackerActivity extends AppCompatActivity {
                 .show();
     }
 
+    //==============================================================================================
+    // Frame Trace
+    //==============================================================================================
+
+    /**
+     * Starts recording a frame trace, or stops the current recording and writes it to a Chrome
+     * trace-event file in the app's files directory.
+     */
+    private void toggleFrameTrace() {
+        if (!FrameTracer.isEnabled()) {
+            FrameTracer.setEnabled(true);
+            Snackbar.make(mGraphicOverlay, R.string.trace_started, Snackbar.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Copied out of the ring, so that a new recording may start while this one is written
+        final FrameTracer.Trace trace = FrameTracer.stop();
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        final File file = new File(dir, "trace-" + System.currentTimeMillis() + ".json");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    trace.write(file);
+                    Log.i(TAG, "Frame trace written to " + file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to write frame trace.", e);
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Snackbar.make(mGraphicOverlay,
+                                getString(R.string.trace_saved, file.getAbsolutePath()),
+                                Snackbar.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }).start();
+    }
+
     //==============================================================================================
     // Camera Source Preview
     //==============================================================================================
@@ -271,10 +531,23 @@ public final class FaceTrackerActivity extends AppCompatActivity {
     private class GraphicFaceTracker extends Tracker<Face> {
         private GraphicOverlay mOverlay;
         private FaceGraphic mFaceGraphic;
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        // Checks whether the face has been missing long enough after it was given up on
+        private final Runnable mMissingCheck = new Runnable() {
+            @Override
+            public void run() {
+                Size target = mSizeSelector.onFaceMissing(SystemClock.elapsedRealtime());
+                if (target != null) {
+                    switchPreviewSize(target);
+                }
+            }
+        };
 
         GraphicFaceTracker(GraphicOverlay overlay) {
             mOverlay = overlay;
             mFaceGraphic = new FaceGraphic(overlay, getApplicationContext());
+            mFaceGraphic.setWarpEnabled(MESH_WARP);
         }
 
         /**
@@ -290,8 +563,20 @@ public final class FaceTrackerActivity extends AppCompatActivity {
          */
         @Override
         public void onUpdate(FaceDetector.Detections<Face> detectionResults, Face face) {
+            int frameId = detectionResults.getFrameMetadata().getId();
+            mHandler.removeCallbacks(mMissingCheck);
+            FrameTracer.begin("onUpdate", frameId);
             mOverlay.add(mFaceGraphic);
-            mFaceGraphic.updateFace(face);
+            mFaceGraphic.updateFace(face, frameId);
+            FrameTracer.end("onUpdate", frameId);
+
+            FrameSource cameraSource = mCameraSource;
+            if (DYNAMIC_PREVIEW_SIZE && cameraSource != null) {
+                Size previewSize = cameraSource.getPreviewSize();
+                if (previewSize != null) {
+                    postPreviewSizeSwitch(mSizeSelector.update(face.getWidth(), previewSize));
+                }
+            }
         }
 
         /**
@@ -302,6 +587,9 @@ public final class FaceTrackerActivity extends AppCompatActivity {
         @Override
         public void onMissing(FaceDetector.Detections<Face> detectionResults) {
             mOverlay.remove(mFaceGraphic);
+            if (DYNAMIC_PREVIEW_SIZE) {
+                postPreviewSizeSwitch(mSizeSelector.onFaceMissing(SystemClock.elapsedRealtime()));
+            }
         }
 
         /**
@@ -311,6 +599,29 @@ public final class FaceTrackerActivity extends AppCompatActivity {
         @Override
         public void onDone() {
             mOverlay.remove(mFaceGraphic);
+            if (DYNAMIC_PREVIEW_SIZE) {
+                // The processor gives up on a face after a few missing frames and then stops
+                // reporting, so check again once the face has been missing long enough to go back
+                // to the largest size, unless it was found again by then.
+                postPreviewSizeSwitch(mSizeSelector.onFaceMissing(SystemClock.elapsedRealtime()));
+                mHandler.removeCallbacks(mMissingCheck);
+                mHandler.postDelayed(mMissingCheck, PreviewSizeSelector.MISSING_MILLIS);
+            }
+        }
+
+        /**
+         * Switches to the supplied preview size on the main thread, if it is not null.
+         */
+        private void postPreviewSizeSwitch(final Size target) {
+            if (target == null) {
+                return;
+            }
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    switchPreviewSize(target);
+                }
+            });
         }
     }
 }
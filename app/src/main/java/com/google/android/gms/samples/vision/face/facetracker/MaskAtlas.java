@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * All mask layers packed into a single bitmap at build time by the packMaskAtlas task.  The asset
+ * already holds decoded pixels, so loading it only maps the file and copies the pixels into one
+ * bitmap, instead of decoding each layer PNG into a bitmap of its own.  Layers are trimmed to their
+ * non-transparent pixels, leaving out only the faint border that marks the frame of each PNG, and
+ * each keeps its offset within the full layer frame so that it can be placed exactly where the
+ * layer PNG would have been drawn.
+ */
+class MaskAtlas {
+    private static final String TAG = "MaskAtlas";
+
+    private static final String ASSET_NAME = "mask.atlas";
+    private static final int MAGIC = 0x4D534B41;
+    private static final int VERSION = 1;
+
+    // Number of ints describing a layer: position and size in the atlas, offset within the frame
+    private static final int LAYER_INTS = 6;
+
+    private static MaskAtlas sInstance;
+    private static boolean sLoadAttempted;
+
+    private final Bitmap mBitmap;
+    private final int mFrameWidth;
+    private final int mFrameHeight;
+    private final String[] mNames;
+    private final int[] mLayers;
+
+    private MaskAtlas(Bitmap bitmap, int frameWidth, int frameHeight, String[] names,
+                      int[] layers) {
+        mBitmap = bitmap;
+        mFrameWidth = frameWidth;
+        mFrameHeight = frameHeight;
+        mNames = names;
+        mLayers = layers;
+    }
+
+    /**
+     * Returns the atlas, loading it on first use.  Returns null if the atlas is not available, in
+     * which case the layers should be drawn from their resources.
+     */
+    static synchronized MaskAtlas get(Context context) {
+        if (!sLoadAttempted) {
+            sLoadAttempted = true;
+            try {
+                sInstance = load(context);
+            } catch (IOException e) {
+                Log.w(TAG, "Mask atlas not available, drawing layers from resources.", e);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the index of the layer with the supplied resource name, or -1 if it is not packed.
+     */
+    int getLayerIndex(String name) {
+        for (int i = 0; i < mNames.length; ++i) {
+            if (mNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * Sets the area of the layer within the atlas bitmap.
+     */
+    void getSource(int layer, Rect source) {
+        int base = layer * LAYER_INTS;
+        int x = mLayers[base];
+        int y = mLayers[base + 1];
+        source.set(x, y, x + mLayers[base + 2], y + mLayers[base + 3]);
+    }
+
+    /**
+     * Sets where the layer has to be drawn for the full layer frame to cover the supplied bounds.
+     */
+    void getDestination(int layer, float left, float top, float right, float bottom,
+                        RectF destination) {
+        int base = layer * LAYER_INTS;
+        float scaleX = (right - left) / mFrameWidth;
+        float scaleY = (bottom - top) / mFrameHeight;
+        float x = left + mLayers[base + 4] * scaleX;
+        float y = top + mLayers[base + 5] * scaleY;
+        destination.set(x, y, x + mLayers[base + 2] * scaleX, y + mLayers[base + 3] * scaleY);
+    }
+
+    private static MaskAtlas load(Context context) throws IOException {
+        long start = System.nanoTime();
+
+        AssetFileDescriptor descriptor = context.getAssets().openFd(ASSET_NAME);
+        FileInputStream stream = descriptor.createInputStream();
+        try {
+            MappedByteBuffer buffer = stream.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    descriptor.getStartOffset(), descriptor.getLength());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported mask atlas format.");
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int frameWidth = buffer.getInt();
+            int frameHeight = buffer.getInt();
+            int count = buffer.getInt();
+
+            String[] names = new String[count];
+            int[] layers = new int[count * LAYER_INTS];
+            for (int i = 0; i < count; ++i) {
+                byte[] name = new byte[buffer.getShort()];
+                buffer.get(name);
+                names[i] = new String(name, "US-ASCII");
+                for (int j = 0; j < LAYER_INTS; ++j) {
+                    layers[i * LAYER_INTS + j] = buffer.getInt();
+                }
+            }
+
+            // The remaining bytes are the pixels, already in the layout of an ARGB_8888 bitmap.
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(buffer);
+
+            Log.i(TAG, "Loaded " + count + " mask layers in "
+                    + (System.nanoTime() - start) / 1000000.0f + " ms, "
+                    + (width * height * 4 / 1024) + " KB of pixels");
+            return new MaskAtlas(bitmap, frameWidth, frameHeight, names, layers);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker;
+
+/**
+ * Cache of vertex grids for warping the mask with {@link android.graphics.Canvas#drawBitmapMesh}
+ * so that it follows the head turning (Euler Y) and tilting (Euler Z).  The angles are quantized
+ * into buckets, and the grid of each bucket is computed once and kept in a small direct-mapped
+ * cache of float arrays, so that drawing a frame only costs a lookup.<p>
+ *
+ * The mask is modelled as a cylinder around the vertical axis, which is rotated by the yaw and
+ * projected with a simple perspective, then rotated in the image plane by the roll.  Vertices are
+ * expressed in units of the mask size, centered on the origin, so the canvas has to be translated
+ * to the center of the face and scaled to the mask size before drawing.
+ */
+class MaskMeshCache {
+    // Number of mesh cells in each direction
+    static final int MESH_WIDTH = 8;
+    static final int MESH_HEIGHT = 8;
+
+    // Angle covered by a bucket, and the largest angle distinguished, in degrees
+    private static final float BUCKET_DEGREES = 5.0f;
+    private static final int MAX_YAW_BUCKET = 12;
+    private static final int MAX_ROLL_BUCKET = 12;
+    // Number of grids kept, a few buckets around the current pose are enough
+    private static final int SLOTS = 32;
+    // Distance of the viewer from the mask, in units of the mask size
+    private static final float FOCAL_LENGTH = 3.0f;
+    // Radius of the cylinder the mask is wrapped around, in units of the mask size
+    private static final float RADIUS = 0.5f;
+
+    // Upper bound of the perspective scale, reached by a point turned all the way to the viewer.
+    // A warped mask stays within this factor of the unwarped mask's extent around its center.
+    static final float MAX_SCALE = FOCAL_LENGTH / (FOCAL_LENGTH - RADIUS);
+
+    private static final int VERTEX_COUNT = (MESH_WIDTH + 1) * (MESH_HEIGHT + 1);
+
+    private final int[] mKeys = new int[SLOTS];
+    private final float[][] mMeshes = new float[SLOTS][VERTEX_COUNT * 2];
+
+    MaskMeshCache() {
+        for (int i = 0; i < SLOTS; ++i) {
+            mKeys[i] = -1;
+        }
+    }
+
+    /**
+     * Returns the vertex grid for the supplied head pose.  The returned array is owned by the cache
+     * and only valid until the next call.
+     *
+     * @param yaw  head turn in degrees, Euler Y
+     * @param roll head tilt in degrees, Euler Z
+     */
+    float[] get(float yaw, float roll) {
+        int yawBucket = bucket(yaw, MAX_YAW_BUCKET);
+        int rollBucket = bucket(roll, MAX_ROLL_BUCKET);
+        int key = (yawBucket + MAX_YAW_BUCKET) * (2 * MAX_ROLL_BUCKET + 1)
+                + rollBucket + MAX_ROLL_BUCKET;
+
+        int slot = key % SLOTS;
+        float[] mesh = mMeshes[slot];
+        if (mKeys[slot] != key) {
+            compute(mesh, yawBucket * BUCKET_DEGREES, rollBucket * BUCKET_DEGREES);
+            mKeys[slot] = key;
+        }
+        return mesh;
+    }
+
+    private static int bucket(float degrees, int maxBucket) {
+        if (Float.isNaN(degrees)) {
+            return 0;
+        }
+        int bucket = Math.round(degrees / BUCKET_DEGREES);
+        return Math.max(-maxBucket, Math.min(maxBucket, bucket));
+    }
+
+    private static void compute(float[] mesh, float yawDegrees, float rollDegrees) {
+        double yaw = Math.toRadians(yawDegrees);
+        double roll = Math.toRadians(rollDegrees);
+        float cosYaw = (float) Math.cos(yaw);
+        float sinYaw = (float) Math.sin(yaw);
+        float cosRoll = (float) Math.cos(roll);
+        float sinRoll = (float) Math.sin(roll);
+
+        int index = 0;
+        for (int row = 0; row <= MESH_HEIGHT; ++row) {
+            float v = (float) row / MESH_HEIGHT - 0.5f;
+            for (int column = 0; column <= MESH_WIDTH; ++column) {
+                float u = (float) column / MESH_WIDTH - 0.5f;
+
+                // Turn the point on the cylinder and project it, keeping the unturned mask as is
+                float z = (float) Math.sqrt(Math.max(0, RADIUS * RADIUS - u * u));
+                float turnedX = u * cosYaw + z * sinYaw;
+                float turnedZ = -u * sinYaw + z * cosYaw;
+                float scale = (FOCAL_LENGTH - z) / (FOCAL_LENGTH - turnedZ);
+                float x = turnedX * scale;
+                float y = v * scale;
+
+                // Tilt in the image plane, in the same direction as Canvas.rotate()
+                mesh[index++] = x * cosRoll - y * sinRoll;
+                mesh[index++] = x * sinRoll + y * cosRoll;
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker;
+
+import android.graphics.PointF;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.google.android.gms.samples.vision.face.facetracker.ui.camera.FrameBudgetWatchdog;
+import com.google.android.gms.samples.vision.face.facetracker.util.FrameTracer;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detector which sits in front of a face detector and skips detection on frames that are nearly
+ * identical to the last detected frame.  A subsampled block signature of the luma plane is compared
+ * between frames; when the difference is below a threshold, the previous detection result is
+ * reused instead of running the underlying detector again.  A detection is still forced every
+ * few frames so that slow changes (e.g., a blink) are not missed for long.
+ */
+class MotionGatedDetector extends Detector<Face> {
+    // Size of the block grid used for the frame signature
+    private static final int GRID_COLUMNS = 16;
+    private static final int GRID_ROWS = 12;
+    // Only every n-th pixel in both directions is sampled within a block
+    private static final int SAMPLE_STEP = 4;
+    // Frames stamped longer ago than this are assumed to use a different time base
+    private static final long MAX_QUEUE_MILLIS = 1000;
+
+    private final Detector<Face> mDelegate;
+    private final float mThreshold;
+    private final int mForcedInterval;
+    private final boolean mFaceRegionOnly;
+    private FrameBudgetWatchdog mWatchdog;
+    private volatile long mFrameTimeBaseMillis = -1;
+
+    private int[] mSignature = new int[GRID_COLUMNS * GRID_ROWS];
+    private int[] mLastSignature = new int[GRID_COLUMNS * GRID_ROWS];
+    private SparseArray<Face> mLastDetections;
+    private int mFramesSinceDetection;
+
+    private volatile long mGatedFrames;
+    private volatile long mDetectedFrames;
+
+    // Measurements since the last call to resetStats()
+    private volatile int mStatsFrames;
+    private volatile int mStatsDetections;
+    private volatile long mStatsDetectionNanos;
+    private volatile long mStatsFirstFrameNanos;
+    private volatile long mStatsLastFrameNanos;
+
+    /**
+     * Creates a gate in front of the supplied detector.
+     *
+     * @param delegate       detector that is run when motion is detected
+     * @param threshold      mean absolute luma difference per block below which a frame is skipped
+     * @param forcedInterval maximum number of consecutive frames that may be skipped
+     * @param faceRegionOnly whether to compare only the area around the last detected faces
+     */
+    MotionGatedDetector(Detector<Face> delegate, float threshold, int forcedInterval,
+                        boolean faceRegionOnly) {
+        mDelegate = delegate;
+        mThreshold = threshold;
+        mForcedInterval = forcedInterval;
+        mFaceRegionOnly = faceRegionOnly;
+    }
+
+    /**
+     * Runs the underlying detector, unless the frame barely differs from the last detected frame,
+     * in which case the previous result is returned.
+     */
+    @Override
+    public SparseArray<Face> detect(Frame frame) {
+        int frameId = frame.getMetadata().getId();
+        FrameTracer.setCurrentFrameId(frameId);
+        if (FrameTracer.isEnabled()) {
+            traceArrival(frame, frameId);
+        }
+        FrameTracer.instant("received", frameId);
+
+        long now = System.nanoTime();
+        if (mStatsFrames++ == 0) {
+            mStatsFirstFrameNanos = now;
+        }
+        mStatsLastFrameNanos = now;
+
+        boolean hasSignature = computeSignature(frame);
+
+        if (hasSignature && mLastDetections != null && mFramesSinceDetection < mForcedInterval
+                && difference(mSignature, mLastSignature) < mThreshold) {
+            mFramesSinceDetection++;
+            mGatedFrames++;
+            FrameTracer.instant("gated", frameId);
+            recordFrameTime(now);
+            return mLastDetections;
+        }
+
+        FrameTracer.begin("detect", frameId);
+        SparseArray<Face> detections = mDelegate.detect(frame);
+        FrameTracer.end("detect", frameId);
+        mDetectedFrames++;
+        mStatsDetections++;
+        mStatsDetectionNanos += System.nanoTime() - now;
+        mLastDetections = detections;
+        mFramesSinceDetection = 0;
+
+        if (mFaceRegionOnly) {
+            // The compared region follows the faces, so sign the frame again over the new region
+            computeSignature(frame);
+        }
+        int[] tmp = mLastSignature;
+        mLastSignature = mSignature;
+        mSignature = tmp;
+        recordFrameTime(now);
+        return detections;
+    }
+
+    private void recordFrameTime(long start) {
+        FrameBudgetWatchdog watchdog = mWatchdog;
+        if (watchdog != null) {
+            watchdog.recordDetection(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records when the frame left the camera, for sources which do not record it themselves.  The
+     * frame timestamp only has millisecond resolution.
+     */
+    private void traceArrival(Frame frame, int frameId) {
+        long base = mFrameTimeBaseMillis;
+        if (base < 0) {
+            return;
+        }
+        long queuedMillis = SystemClock.elapsedRealtime()
+                - (base + frame.getMetadata().getTimestampMillis());
+        if (queuedMillis >= 0 && queuedMillis < MAX_QUEUE_MILLIS) {
+            FrameTracer.instant("arrival", frameId, System.nanoTime() - queuedMillis * 1000000);
+        }
+    }
+
+    /**
+     * Sets the {@link SystemClock#elapsedRealtime()} that frame timestamps are relative to, so that
+     * the time a frame waited before reaching this detector shows up in the frame trace.  Pass -1
+     * for sources which trace the arrival of frames themselves.
+     */
+    void setFrameTimeBase(long elapsedRealtimeMillis) {
+        mFrameTimeBaseMillis = elapsedRealtimeMillis;
+    }
+
+    /**
+     * Sets the watchdog that the time spent per frame is reported to.
+     */
+    void setFrameBudgetWatchdog(FrameBudgetWatchdog watchdog) {
+        mWatchdog = watchdog;
+    }
+
+    @Override
+    public boolean isOperational() {
+        return mDelegate.isOperational();
+    }
+
+    @Override
+    public boolean setFocus(int id) {
+        return mDelegate.setFocus(id);
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        mDelegate.release();
+    }
+
+    /**
+     * Returns the number of frames for which the previous result was reused.
+     */
+    long getGatedFrameCount() {
+        return mGatedFrames;
+    }
+
+    /**
+     * Returns the number of frames on which the underlying detector was run.
+     */
+    long getDetectedFrameCount() {
+        return mDetectedFrames;
+    }
+
+    /**
+     * Starts a new measurement of the frame rate and detection latency.
+     */
+    void resetStats() {
+        mStatsFrames = 0;
+        mStatsDetections = 0;
+        mStatsDetectionNanos = 0;
+    }
+
+    /**
+     * Returns the number of detections run since the last call to {@link #resetStats()}.
+     */
+    int getStatsDetectionCount() {
+        return mStatsDetections;
+    }
+
+    /**
+     * Returns the average time spent in the underlying detector per detected frame, in
+     * milliseconds.
+     */
+    float getAverageDetectionMillis() {
+        int detections = mStatsDetections;
+        if (detections == 0) {
+            return 0;
+        }
+        return mStatsDetectionNanos / 1000000.0f / detections;
+    }
+
+    /**
+     * Returns the rate at which frames reached this detector, in frames per second.
+     */
+    float getFrameRate() {
+        int frames = mStatsFrames;
+        long elapsed = mStatsLastFrameNanos - mStatsFirstFrameNanos;
+        if (frames < 2 || elapsed <= 0) {
+            return 0;
+        }
+        return (frames - 1) * 1000000000.0f / elapsed;
+    }
+
+    //==============================================================================================
+    // Frame Signature
+    //==============================================================================================
+
+    /**
+     * Computes the block signature of the frame's luma plane into {@link #mSignature}.
+     *
+     * @return false if the frame has no image data to compute a signature from
+     */
+    private boolean computeSignature(Frame frame) {
+        ByteBuffer luma = frame.getGrayscaleImageData();
+        if (luma == null) {
+            return false;
+        }
+        int width = frame.getMetadata().getWidth();
+        int height = frame.getMetadata().getHeight();
+
+        int left = 0;
+        int top = 0;
+        int right = width;
+        int bottom = height;
+        if (mFaceRegionOnly && mLastDetections != null && mLastDetections.size() > 0) {
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int i = 0; i < mLastDetections.size(); ++i) {
+                Face face = mLastDetections.valueAt(i);
+                PointF position = face.getPosition();
+                minX = Math.min(minX, position.x);
+                minY = Math.min(minY, position.y);
+                maxX = Math.max(maxX, position.x + face.getWidth());
+                maxY = Math.max(maxY, position.y + face.getHeight());
+            }
+
+            // Faces are reported upright, while the luma plane is in sensor orientation.  The
+            // rotation is how far the sensor image has to be turned clockwise to be upright.
+            float sensorLeft;
+            float sensorTop;
+            float sensorRight;
+            float sensorBottom;
+            switch (frame.getMetadata().getRotation()) {
+                case Frame.ROTATION_90:
+                    sensorLeft = minY;
+                    sensorTop = height - maxX;
+                    sensorRight = maxY;
+                    sensorBottom = height - minX;
+                    break;
+                case Frame.ROTATION_180:
+                    sensorLeft = width - maxX;
+                    sensorTop = height - maxY;
+                    sensorRight = width - minX;
+                    sensorBottom = height - minY;
+                    break;
+                case Frame.ROTATION_270:
+                    sensorLeft = width - maxY;
+                    sensorTop = minX;
+                    sensorRight = width - minY;
+                    sensorBottom = maxX;
+                    break;
+                default:
+                    sensorLeft = minX;
+                    sensorTop = minY;
+                    sensorRight = maxX;
+                    sensorBottom = maxY;
+                    break;
+            }
+            left = Math.max(0, (int) sensorLeft);
+            top = Math.max(0, (int) sensorTop);
+            right = Math.min(width, (int) sensorRight);
+            bottom = Math.min(height, (int) sensorBottom);
+            if (right - left < GRID_COLUMNS || bottom - top < GRID_ROWS) {
+                left = 0;
+                top = 0;
+                right = width;
+                bottom = height;
+            }
+        }
+
+        int blockWidth = (right - left) / GRID_COLUMNS;
+        int blockHeight = (bottom - top) / GRID_ROWS;
+        if (blockWidth == 0 || blockHeight == 0 || luma.capacity() < width * height) {
+            return false;
+        }
+
+        for (int row = 0; row < GRID_ROWS; ++row) {
+            int blockTop = top + row * blockHeight;
+            for (int column = 0; column < GRID_COLUMNS; ++column) {
+                int blockLeft = left + column * blockWidth;
+                int sum = 0;
+                int count = 0;
+                for (int y = blockTop; y < blockTop + blockHeight; y += SAMPLE_STEP) {
+                    int offset = y * width;
+                    for (int x = blockLeft; x < blockLeft + blockWidth; x += SAMPLE_STEP) {
+                        sum += luma.get(offset + x) & 0xff;
+                        count++;
+                    }
+                }
+                mSignature[row * GRID_COLUMNS + column] = sum / count;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the mean absolute difference between two signatures.
+     */
+    private static float difference(int[] a, int[] b) {
+        int total = 0;
+        for (int i = 0; i < a.length; ++i) {
+            total += Math.abs(a[i] - b[i]);
+        }
+        return (float) total / a.length;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker;
+
+import com.google.android.gms.common.images.Size;
+
+/**
+ * Picks the smallest preview size which still keeps the tracked face above a minimum size in
+ * pixels.  A user close to the camera produces a face that can be detected just as well at a much
+ * lower resolution, which makes detection considerably cheaper.<p>
+ *
+ * Candidates are requested from the camera source, which snaps them to the closest size supported
+ * by the device.  To avoid flapping between two sizes, a smaller size is only chosen when the face
+ * stays comfortably above the minimum, and the same choice has to be made for a number of
+ * consecutive frames before a switch is reported.<p>
+ *
+ * When the face has been missing for a while, the selector goes back to the largest size, so that
+ * a new user further away from the camera can be detected again.  A face which is only briefly
+ * hidden, e.g. by a hand passing in front of it, does not cause a switch.  The selector may be
+ * used from the detector thread and the main thread.
+ */
+class PreviewSizeSelector {
+    // Candidate preview sizes, from smallest to largest
+    private static final Size[] CANDIDATES = {
+        new Size(320, 240),
+        new Size(480, 360),
+        new Size(640, 480)
+    };
+    // Margin above the minimum face size required before stepping down to a smaller size
+    private static final float HYSTERESIS = 0.5f;
+    // Number of consecutive frames which have to agree on a new size before switching
+    private static final int STABLE_FRAMES = 15;
+    // Time without the face before going back to the largest size, in milliseconds
+    static final long MISSING_MILLIS = 1000;
+
+    private final float mMinFaceSize;
+
+    // Index of the candidate which was last requested from the camera source
+    private int mCurrent = CANDIDATES.length - 1;
+    private int mProposed = -1;
+    private int mProposedFrames;
+    // Time the face went missing at, or -1 while it is present
+    private long mMissingSince = -1;
+
+    /**
+     * @param minFaceSize minimum width of the tracked face in preview pixels
+     */
+    PreviewSizeSelector(float minFaceSize) {
+        mMinFaceSize = minFaceSize;
+    }
+
+    /**
+     * Starts from the candidate closest to the supplied size, e.g. the size that was negotiated on
+     * a previous launch.
+     */
+    synchronized void setInitialSize(Size size) {
+        int longSide = Math.max(size.getWidth(), size.getHeight());
+        int closest = mCurrent;
+        int closestDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < CANDIDATES.length; ++i) {
+            int distance = Math.abs(
+                    Math.max(CANDIDATES[i].getWidth(), CANDIDATES[i].getHeight()) - longSide);
+            if (distance < closestDistance) {
+                closest = i;
+                closestDistance = distance;
+            }
+        }
+        mCurrent = closest;
+    }
+
+    /**
+     * Returns the size which should currently be requested from the camera source.
+     */
+    synchronized Size getRequestedSize() {
+        return CANDIDATES[mCurrent];
+    }
+
+    /**
+     * Updates the selector with the tracked face of the latest frame.
+     *
+     * @param faceWidth   width of the face in preview pixels
+     * @param previewSize preview size the face was detected at, as negotiated by the camera
+     * @return the size to switch to, or null if the current size should be kept
+     */
+    synchronized Size update(float faceWidth, Size previewSize) {
+        mMissingSince = -1;
+        int previewLongSide = Math.max(previewSize.getWidth(), previewSize.getHeight());
+        int target = select(faceWidth, previewLongSide);
+
+        if (target == mCurrent) {
+            mProposed = -1;
+            mProposedFrames = 0;
+            return null;
+        }
+
+        if (target != mProposed) {
+            mProposed = target;
+            mProposedFrames = 0;
+        }
+        if (++mProposedFrames < STABLE_FRAMES) {
+            return null;
+        }
+
+        mCurrent = target;
+        mProposed = -1;
+        mProposedFrames = 0;
+        return CANDIDATES[mCurrent];
+    }
+
+    /**
+     * Updates the selector with the tracked face being missing.  Call this for every frame the
+     * face was not found in, and again {@link #MISSING_MILLIS} after the face was given up on,
+     * since no frames are reported for a face that is gone.
+     *
+     * @param nowMillis current {@link android.os.SystemClock#elapsedRealtime()}
+     * @return the largest size, once the face has been missing for {@link #MISSING_MILLIS} and a
+     * smaller size is in use, or null if the current size should be kept
+     */
+    synchronized Size onFaceMissing(long nowMillis) {
+        if (mMissingSince < 0) {
+            mMissingSince = nowMillis;
+        }
+        if (nowMillis - mMissingSince < MISSING_MILLIS) {
+            return null;
+        }
+        return reset();
+    }
+
+    /**
+     * Returns whether the largest size is in use.
+     */
+    synchronized boolean isLargestSize() {
+        return mCurrent == CANDIDATES.length - 1;
+    }
+
+    /**
+     * Goes back to the largest size.
+     *
+     * @return the largest size if a smaller size is in use, or null if it is already in use
+     */
+    private Size reset() {
+        mMissingSince = -1;
+        mProposed = -1;
+        mProposedFrames = 0;
+        if (mCurrent == CANDIDATES.length - 1) {
+            return null;
+        }
+        mCurrent = CANDIDATES.length - 1;
+        return CANDIDATES[mCurrent];
+    }
+
+    /**
+     * Returns the index of the smallest candidate which keeps a face of the supplied width, detected
+     * at a preview whose long side is the supplied number of pixels, above the minimum size.
+     */
+    private int select(float faceWidth, int previewLongSide) {
+        for (int i = 0; i < CANDIDATES.length; ++i) {
+            int longSide = Math.max(CANDIDATES[i].getWidth(), CANDIDATES[i].getHeight());
+            float scaledWidth = faceWidth * longSide / previewLongSide;
+
+            // Only require the extra margin when stepping down to a smaller size
+            float required = (i < mCurrent) ? mMinFaceSize * (1.0f + HYSTERESIS) : mMinFaceSize;
+            if (scaledWidth >= required) {
+                return i;
+            }
+        }
+        return CANDIDATES.length - 1;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker;
+
+import android.content.Context;
+import android.graphics.PointF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.samples.vision.face.facetracker.ui.camera.FrameBudgetWatchdog;
+import com.google.android.gms.samples.vision.face.facetracker.ui.camera.GraphicOverlay;
+import com.google.android.gms.vision.CameraSource;
+import com.google.android.gms.vision.face.Face;
+import com.google.android.gms.vision.face.Landmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the overlay with a number of synthetic faces instead of camera detections.  The faces
+ * move, turn, tilt and blink on every frame, so that every graphic has to be drawn again.  Each
+ * face count is run with serial and with layered rendering, each drawing the mask both rotated and
+ * warped by the mesh, and the frame rate, the time spent in onDraw and the time spent rasterizing
+ * layers are logged for each run.  Layer times are the most direct comparison of the mask paths,
+ * since they are software rasterization, while onDraw may only record a display list.<p>
+ *
+ * The frame budget watchdog is pinned at full quality while the benchmark runs, so that no run
+ * falls back to a simpler path than the one it is labelled with.
+ */
+class RenderBenchmark {
+    private static final String TAG = "RenderBenchmark";
+
+    // Numbers of faces to measure
+    private static final int[] FACE_COUNTS = {1, 5, 10, 20};
+    // Runs per face count: serial or layered, each rotating or warping the mask
+    private static final int RUNS_PER_COUNT = 4;
+    // Frames drawn before measuring, and frames measured, per run
+    private static final int WARMUP_FRAMES = 30;
+    private static final int MEASURED_FRAMES = 180;
+    // Interval at which the synthetic faces are updated
+    private static final long UPDATE_INTERVAL_MS = 16;
+    // Preview size the synthetic faces are laid out in
+    private static final int PREVIEW_WIDTH = 640;
+    private static final int PREVIEW_HEIGHT = 480;
+
+    private final Context mContext;
+    private final GraphicOverlay mOverlay;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final List<FaceGraphic> mGraphics = new ArrayList<>();
+    private final boolean mLayeredRendering;
+
+    private int mRun;
+    private int mFrame;
+    private long mMeasureStart;
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    RenderBenchmark(Context context, GraphicOverlay overlay) {
+        mContext = context;
+        mOverlay = overlay;
+        mLayeredRendering = overlay.isLayeredRendering();
+    }
+
+    /**
+     * Starts the runs from the beginning.  The overlay must not receive camera detections while
+     * the benchmark is running.
+     */
+    void start() {
+        mOverlay.setCameraInfo(PREVIEW_WIDTH, PREVIEW_HEIGHT, CameraSource.CAMERA_FACING_FRONT);
+        mOverlay.getFrameBudgetWatchdog().pinLevel(FrameBudgetWatchdog.LEVEL_FULL);
+        mRun = 0;
+        mFrame = 0;
+        mHandler.post(mStep);
+    }
+
+    /**
+     * Stops the benchmark, removes the synthetic faces and restores the rendering mode and the
+     * watchdog.
+     */
+    void stop() {
+        mHandler.removeCallbacks(mStep);
+        mGraphics.clear();
+        mOverlay.clear();
+        mOverlay.setLayeredRendering(mLayeredRendering);
+        mOverlay.getFrameBudgetWatchdog().unpinLevel();
+    }
+
+    private int getRunCount() {
+        return FACE_COUNTS.length * RUNS_PER_COUNT;
+    }
+
+    private void step() {
+        if (mRun >= getRunCount()) {
+            Log.i(TAG, "Finished");
+            stop();
+            return;
+        }
+
+        int faceCount = FACE_COUNTS[mRun / RUNS_PER_COUNT];
+        boolean layered = (mRun & 1) != 0;
+        boolean warp = (mRun & 2) != 0;
+        if (mFrame == 0) {
+            setUp(faceCount, layered, warp);
+        }
+
+        for (int i = 0; i < mGraphics.size(); ++i) {
+            mGraphics.get(i).updateFace(createFace(i, faceCount, mFrame), mFrame);
+        }
+
+        if (mFrame == WARMUP_FRAMES) {
+            mOverlay.resetRenderStats();
+            mMeasureStart = SystemClock.elapsedRealtime();
+        } else if (mFrame == WARMUP_FRAMES + MEASURED_FRAMES) {
+            report(faceCount, layered, warp);
+            mRun++;
+            mFrame = 0;
+            mHandler.post(mStep);
+            return;
+        }
+        mFrame++;
+        mHandler.postDelayed(mStep, UPDATE_INTERVAL_MS);
+    }
+
+    private void setUp(int faceCount, boolean layered, boolean warp) {
+        mGraphics.clear();
+        mOverlay.clear();
+        mOverlay.setLayeredRendering(layered);
+        for (int i = 0; i < faceCount; ++i) {
+            FaceGraphic graphic = new FaceGraphic(mOverlay, mContext);
+            graphic.setId(i);
+            graphic.setWarpEnabled(warp);
+            mGraphics.add(graphic);
+            mOverlay.add(graphic);
+        }
+    }
+
+    private void report(int faceCount, boolean layered, boolean warp) {
+        long elapsed = SystemClock.elapsedRealtime() - mMeasureStart;
+        int draws = mOverlay.getStatsDrawCount();
+        float fps = (elapsed > 0) ? draws * 1000.0f / elapsed : 0;
+        Log.i(TAG, faceCount + " faces, " + (layered ? "layered" : "serial") + ", "
+                + (warp ? "mesh warp" : "rotate") + ": "
+                + String.format("%.1f", fps) + " fps, onDraw "
+                + String.format("%.2f", mOverlay.getAverageDrawMillis()) + " ms, "
+                + mOverlay.getStatsLayerCount() + " layers at "
+                + String.format("%.2f", mOverlay.getAverageLayerMillis()) + " ms");
+    }
+
+    /**
+     * Returns the synthetic face with the supplied index for a frame.  Faces are laid out in a
+     * grid, each wobbling around the center of its cell, and cycle through the mask states.
+     */
+    private static Face createFace(int index, int faceCount, int frame) {
+        int columns = (int) Math.ceil(Math.sqrt(faceCount));
+        int rows = (faceCount + columns - 1) / columns;
+        float cellWidth = (float) PREVIEW_WIDTH / columns;
+        float cellHeight = (float) PREVIEW_HEIGHT / rows;
+        // The mask is drawn at twice the face size, so keep the face at half a cell
+        float size = Math.min(cellWidth, cellHeight) / 2;
+
+        double phase = frame * 0.1 + index;
+        float x = (index % columns + 0.5f) * cellWidth - size / 2 + (float) Math.sin(phase) * 4;
+        float y = (index / columns + 0.5f) * cellHeight - size / 2 + (float) Math.cos(phase) * 4;
+        float eulerY = (float) Math.sin(phase * 0.5) * 30;
+        // Tilt by a degree per frame, so that no update is small enough to be skipped
+        float eulerZ = (frame + index * 7) % 40 - 20;
+        float eyesOpen = ((frame / 10 + index) % 3) * 0.45f;
+        float smiling = ((frame / 15 + index) % 3) * 0.4f;
+
+        return new Face(index, new PointF(x, y), size, size, eulerY, eulerZ, new Landmark[0],
+                eyesOpen, eyesOpen, smiling);
+    }
+}
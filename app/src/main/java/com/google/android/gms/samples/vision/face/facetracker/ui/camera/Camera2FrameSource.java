@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.WindowManager;
+
+import com.google.android.gms.common.images.Size;
+import com.google.android.gms.vision.CameraSource;
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.samples.vision.face.facetracker.util.FrameTracer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Frame source built on the camera2 API.  Frames are received as YUV_420_888 images from an
+ * {@link ImageReader}, and the luma plane is handed to the detector through a
+ * {@link LumaFrameDispatcher}, without the NV21 conversion the legacy {@link CameraSource} does.
+ * The reader keeps at most {@link #MAX_IMAGES} images, only the latest one is processed and it is
+ * closed as soon as the detector returns.<p>
+ *
+ * Camera callbacks, image delivery and detection all run on a single background thread.  The
+ * camera is only opened once the preview surface has been resized to the chosen preview size, since
+ * a capture session configured with a surface of the wrong size fails or scales the stream.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2FrameSource implements FrameSource {
+    private static final String TAG = "Camera2FrameSource";
+
+    // Maximum number of images the reader holds, one being processed and one arriving
+    private static final int MAX_IMAGES = 2;
+
+    private final Context mContext;
+    private final Detector<?> mDetector;
+    private final int mFacing;
+    private final int mRequestedWidth;
+    private final int mRequestedHeight;
+    private final float mRequestedFps;
+    private final LumaFrameDispatcher mDispatcher;
+    private final ImagePlaneImage mPlaneImage = new ImagePlaneImage();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private SurfaceHolder mSurfaceHolder;
+    private SurfaceSizeCallback mSurfaceSizeCallback;
+    private Surface mPreviewSurface;
+    private CameraDevice mCamera;
+    private CameraCaptureSession mSession;
+    private ImageReader mImageReader;
+    private Size mPreviewSize;
+    private Range<Integer> mFpsRange;
+    private int mRotation;
+    // Set on the camera thread when the camera was disconnected or failed, so that the next start
+    // opens it again
+    private volatile boolean mCameraLost;
+
+    /**
+     * @param facing          one of the {@link CameraSource} facing constants
+     * @param requestedWidth  preferred preview width, the closest supported size is used
+     * @param requestedHeight preferred preview height, the closest supported size is used
+     * @param requestedFps    preferred frame rate, the closest supported range is used
+     */
+    public Camera2FrameSource(Context context, Detector<?> detector, int facing,
+                              int requestedWidth, int requestedHeight, float requestedFps) {
+        mContext = context;
+        mDetector = detector;
+        mFacing = facing;
+        mRequestedWidth = requestedWidth;
+        mRequestedHeight = requestedHeight;
+        mRequestedFps = requestedFps;
+        mDispatcher = new LumaFrameDispatcher(new LumaFrameDispatcher.LumaSink() {
+            @Override
+            public void onLuma(ByteBuffer luma, int width, int height, long timestampNanos,
+                               int frameId) {
+                // Face detection only reads the luma plane, which is laid out like in NV21.
+                Frame frame = new Frame.Builder()
+                        .setImageData(luma, width, height, ImageFormat.NV21)
+                        .setId(frameId)
+                        .setTimestampMillis(timestampNanos / 1000000)
+                        .setRotation(mRotation)
+                        .build();
+                mDetector.receiveFrame(frame);
+            }
+        });
+    }
+
+    @Override
+    public void start(SurfaceHolder surfaceHolder) throws IOException {
+        if (mThread != null) {
+            if (!mCameraLost) {
+                return;
+            }
+            // The camera went away since the last start, tear down what is left and reopen it
+            stop();
+        }
+
+        CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String cameraId = findCamera(manager);
+            if (cameraId == null) {
+                throw new IOException("Could not find requested camera.");
+            }
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            StreamConfigurationMap map =
+                    characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            android.util.Size size = chooseSize(map.getOutputSizes(ImageFormat.YUV_420_888));
+            mPreviewSize = new Size(size.getWidth(), size.getHeight());
+            mFpsRange = chooseFpsRange(characteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES));
+            mRotation = computeRotation(
+                    characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION));
+
+            mThread = new HandlerThread(TAG);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+
+            mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                    ImageFormat.YUV_420_888, MAX_IMAGES);
+            mImageReader.setOnImageAvailableListener(new ImageListener(), mHandler);
+
+            mSurfaceHolder = surfaceHolder;
+            mPreviewSurface = surfaceHolder.getSurface();
+            if (surfaceHolder.getSurfaceFrame().width() == size.getWidth()
+                    && surfaceHolder.getSurfaceFrame().height() == size.getHeight()) {
+                openCamera(cameraId);
+            } else {
+                // The resize is applied asynchronously, open the camera once it has taken effect
+                mSurfaceSizeCallback = new SurfaceSizeCallback(cameraId);
+                surfaceHolder.addCallback(mSurfaceSizeCallback);
+                surfaceHolder.setFixedSize(size.getWidth(), size.getHeight());
+            }
+        } catch (CameraAccessException | SecurityException e) {
+            stop();
+            throw new IOException(e);
+        }
+    }
+
+    private void openCamera(String cameraId) throws CameraAccessException {
+        CameraManager manager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+        manager.openCamera(cameraId, new CameraStateCallback(), mHandler);
+    }
+
+    @Override
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        if (mSurfaceSizeCallback != null) {
+            mSurfaceHolder.removeCallback(mSurfaceSizeCallback);
+            mSurfaceSizeCallback = null;
+        }
+        mSurfaceHolder = null;
+
+        // Close on the camera thread, so that an image being detected is never closed under it.
+        final ConditionVariable closed = new ConditionVariable();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                closed.open();
+            }
+        });
+        closed.block();
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+        mCameraLost = false;
+
+        Log.i(TAG, "Luma frames: " + mDispatcher.getZeroCopyFrameCount() + " zero-copy, "
+                + mDispatcher.getCopiedFrameCount() + " packed, "
+                + (mDispatcher.getEstimatedBytesNotCopied() / 1024)
+                + " KB of NV21 copies avoided (estimated), "
+                + mDispatcher.getAverageLatencyMillis() + " ms average latency");
+    }
+
+    @Override
+    public void release() {
+        stop();
+        mDetector.release();
+    }
+
+    @Override
+    public Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    @Override
+    public int getCameraFacing() {
+        return mFacing;
+    }
+
+    /**
+     * Returns the dispatcher, which counts copies and measures latency.
+     */
+    public LumaFrameDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * Closes the session, the camera and the reader.  Must be called on the camera thread.
+     */
+    private void closeCamera() {
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+    }
+
+    private String findCamera(CameraManager manager) throws CameraAccessException {
+        int lensFacing = (mFacing == CameraSource.CAMERA_FACING_FRONT)
+                ? CameraCharacteristics.LENS_FACING_FRONT
+                : CameraCharacteristics.LENS_FACING_BACK;
+        for (String id : manager.getCameraIdList()) {
+            Integer facing = manager.getCameraCharacteristics(id)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == lensFacing) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the supported size closest to the requested size.
+     */
+    private android.util.Size chooseSize(android.util.Size[] sizes) {
+        android.util.Size selected = sizes[0];
+        int minDiff = Integer.MAX_VALUE;
+        for (android.util.Size size : sizes) {
+            int diff = Math.abs(size.getWidth() - mRequestedWidth)
+                    + Math.abs(size.getHeight() - mRequestedHeight);
+            if (diff < minDiff) {
+                selected = size;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Picks the supported frame rate range closest to the requested frame rate, or null to leave
+     * the choice to the camera.
+     */
+    private Range<Integer> chooseFpsRange(Range<Integer>[] ranges) {
+        if (ranges == null || ranges.length == 0) {
+            return null;
+        }
+        Range<Integer> selected = ranges[0];
+        float minDiff = Float.MAX_VALUE;
+        for (Range<Integer> range : ranges) {
+            float diff = Math.abs(mRequestedFps - range.getLower())
+                    + Math.abs(mRequestedFps - range.getUpper());
+            if (diff < minDiff) {
+                selected = range;
+                minDiff = diff;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Computes the rotation of the frames relative to the display, as a {@link Frame} rotation
+     * constant.
+     */
+    private int computeRotation(int sensorOrientation) {
+        WindowManager windowManager =
+                (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
+        int degrees = 0;
+        switch (windowManager.getDefaultDisplay().getRotation()) {
+            case Surface.ROTATION_0:
+                degrees = 0;
+                break;
+            case Surface.ROTATION_90:
+                degrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                degrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                degrees = 270;
+                break;
+        }
+
+        int angle;
+        if (mFacing == CameraSource.CAMERA_FACING_FRONT) {
+            angle = (sensorOrientation + degrees) % 360;
+        } else {
+            angle = (sensorOrientation - degrees + 360) % 360;
+        }
+        return angle / 90;
+    }
+
+    //==============================================================================================
+    // Camera Callbacks
+    //==============================================================================================
+
+    private class CameraStateCallback extends CameraDevice.StateCallback {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            if (mImageReader == null) {
+                // Stopped while the camera was being opened.
+                camera.close();
+                return;
+            }
+            mCamera = camera;
+            try {
+                camera.createCaptureSession(
+                        Arrays.asList(mPreviewSurface, mImageReader.getSurface()),
+                        new SessionStateCallback(), mHandler);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Could not create capture session.", e);
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            Log.w(TAG, "Camera disconnected.");
+            onCameraLost(camera);
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error: " + error);
+            onCameraLost(camera);
+        }
+
+        private void onCameraLost(CameraDevice camera) {
+            camera.close();
+            if (mCamera == camera) {
+                mCamera = null;
+            }
+            closeCamera();
+            mCameraLost = true;
+        }
+    }
+
+    private class SessionStateCallback extends CameraCaptureSession.StateCallback {
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+            if (mCamera == null) {
+                session.close();
+                return;
+            }
+            mSession = session;
+            try {
+                CaptureRequest.Builder builder =
+                        mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                builder.addTarget(mPreviewSurface);
+                builder.addTarget(mImageReader.getSurface());
+                if (mFpsRange != null) {
+                    builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mFpsRange);
+                }
+                session.setRepeatingRequest(builder.build(), null, mHandler);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Could not start preview.", e);
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+            Log.e(TAG, "Could not configure capture session.");
+        }
+    }
+
+    /**
+     * Opens the camera once the preview surface reports the size it was resized to.  Runs on the
+     * main thread.
+     */
+    private class SurfaceSizeCallback implements SurfaceHolder.Callback {
+        private final String mCameraId;
+
+        SurfaceSizeCallback(String cameraId) {
+            mCameraId = cameraId;
+        }
+
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            if (mSurfaceSizeCallback != this || width != mPreviewSize.getWidth()
+                    || height != mPreviewSize.getHeight()) {
+                return;
+            }
+            holder.removeCallback(this);
+            mSurfaceSizeCallback = null;
+            try {
+                openCamera(mCameraId);
+            } catch (CameraAccessException | SecurityException e) {
+                Log.e(TAG, "Could not open camera.", e);
+                mCameraLost = true;
+            }
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+        }
+    }
+
+    private class ImageListener implements ImageReader.OnImageAvailableListener {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            long arrivalNanos = System.nanoTime();
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            FrameTracer.instant("arrival", mDispatcher.getNextFrameId(), arrivalNanos);
+            mPlaneImage.set(image);
+            mDispatcher.dispatch(mPlaneImage, arrivalNanos);
+        }
+    }
+
+    /**
+     * Adapts an {@link Image} to a {@link PlaneImage}.  A single instance is reused for every image,
+     * since images are dispatched one at a time on the camera thread.
+     */
+    private static class ImagePlaneImage implements PlaneImage {
+        private Image mImage;
+
+        void set(Image image) {
+            mImage = image;
+        }
+
+        @Override
+        public int getWidth() {
+            return mImage.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return mImage.getHeight();
+        }
+
+        @Override
+        public ByteBuffer getLumaPlane() {
+            return mImage.getPlanes()[0].getBuffer();
+        }
+
+        @Override
+        public int getLumaRowStride() {
+            return mImage.getPlanes()[0].getRowStride();
+        }
+
+        @Override
+        public int getLumaPixelStride() {
+            return mImage.getPlanes()[0].getPixelStride();
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mImage.getTimestamp();
+        }
+
+        @Override
+        public void close() {
+            mImage.close();
+            mImage = null;
+        }
+    }
+}
@@ -35,7 +35,8 @@ public class CameraSourcePreview extends ViewGroup {
     private SurfaceView mSurfaceView;
     private boolean mStartRequested;
     private boolean mSurfaceAvailable;
-    private CameraSource mCameraSource;
+    private FrameSource mCameraSource;
+    private Size mPreviewSizeHint;
 
     private GraphicOverlay mOverlay;
 
@@ -50,7 +51,25 @@ public class CameraSourcePreview extends ViewGroup {
         addView(mSurfaceView);
     }
 
+    /**
+     * Sets the preview size to lay out with until the camera source reports its actual size, so
+     * that a size known from a previous launch avoids a layout jump on the first frame.
+     */
+    public void setPreviewSizeHint(Size size) {
+        mPreviewSizeHint = size;
+        requestLayout();
+    }
+
     public void start(CameraSource cameraSource) throws IOException {
+        start(cameraSource != null ? new LegacyFrameSource(cameraSource) : null);
+    }
+
+    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws IOException {
+        mOverlay = overlay;
+        start(cameraSource);
+    }
+
+    public void start(FrameSource cameraSource) throws IOException {
         if (cameraSource == null) {
             stop();
         }
@@ -63,11 +82,26 @@ public class CameraSourcePreview extends ViewGroup {
         }
     }
 
-    public void start(CameraSource cameraSource, GraphicOverlay overlay) throws IOException {
+    public void start(FrameSource cameraSource, GraphicOverlay overlay) throws IOException {
         mOverlay = overlay;
         start(cameraSource);
     }
 
+    /**
+     * Restarts the current camera source on the existing surface, e.g. after the display was
+     * rotated.  The camera source and its detector are kept, only the camera is reopened with the
+     * new orientation and the overlay is re-bound to it.
+     */
+    public void restart() throws IOException {
+        if (mCameraSource == null) {
+            return;
+        }
+        mCameraSource.stop();
+        mStartRequested = true;
+        startIfReady();
+        requestLayout();
+    }
+
     public void stop() {
         if (mCameraSource != null) {
             mCameraSource.stop();
@@ -126,6 +160,10 @@ public class CameraSourcePreview extends ViewGroup {
     protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
         int width = 320;
         int height = 240;
+        if (mPreviewSizeHint != null) {
+            width = mPreviewSizeHint.getWidth();
+            height = mPreviewSizeHint.getHeight();
+        }
         if (mCameraSource != null) {
             Size size = mCameraSource.getPreviewSize();
             if (size != null) {
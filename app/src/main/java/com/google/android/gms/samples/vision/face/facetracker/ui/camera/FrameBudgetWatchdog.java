@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
+
+import android.util.Log;
+
+/**
+ * Tracks recent frame and detection times against their budgets.  While the frames of the overlay
+ * exceed their budget, the rendering is stepped down through a series of degradation levels.  Once
+ * there is enough headroom again, it steps back up one level at a time.<p>
+ *
+ * Frame times are the intervals between display frames while the overlay is being redrawn, which
+ * grow with every dropped frame, whether it was spent drawing, rasterizing or compositing.  On
+ * devices without {@link android.view.Choreographer} the time spent drawing is used instead.<p>
+ *
+ * The levels are cumulative:
+ * <ol>
+ * <li>{@link #LEVEL_NO_ROTATION} stops rotating the graphics with the head tilt.</li>
+ * <li>{@link #LEVEL_LOW_RES_MASK} draws graphics from a low resolution composite.</li>
+ * <li>{@link #LEVEL_HALF_RATE} only redraws the overlay for every other update.</li>
+ * </ol>
+ *
+ * Detection times are kept in a window of their own and only reported, since simplifying the
+ * rendering cannot make detection any faster.
+ */
+public class FrameBudgetWatchdog {
+    private static final String TAG = "FrameBudgetWatchdog";
+
+    public static final int LEVEL_FULL = 0;
+    public static final int LEVEL_NO_ROTATION = 1;
+    public static final int LEVEL_LOW_RES_MASK = 2;
+    public static final int LEVEL_HALF_RATE = 3;
+
+    // Number of recent samples a decision is based on
+    private static final int WINDOW = 30;
+    // Fraction of samples over budget in the window that triggers a step down
+    private static final float STEP_DOWN_RATIO = 0.2f;
+    // Fraction of the budget every sample in the window must stay under to step back up.  With a
+    // budget of one and a half frame intervals, this means that no frame was dropped.
+    private static final float STEP_UP_HEADROOM = 0.8f;
+
+    private final Object mLock = new Object();
+    private final SampleWindow mFrames;
+    private final SampleWindow mDetections;
+
+    private volatile int mLevel = LEVEL_FULL;
+    private boolean mLevelPinned = false;
+    private volatile boolean mDetectionOverBudget = false;
+    private volatile int mTransitionCount;
+
+    /**
+     * Recent samples of one path, timed against that path's budget.
+     */
+    private static class SampleWindow {
+        private float mBudgetMs;
+        private final boolean[] mOverBudget = new boolean[WINDOW];
+        private final boolean[] mTight = new boolean[WINDOW];
+        private int mSamples;
+        private int mOverBudgetCount;
+        private int mTightCount;
+
+        private volatile long mFrameCount;
+        private volatile long mOverBudgetFrameCount;
+
+        SampleWindow(float budgetMs) {
+            mBudgetMs = budgetMs;
+        }
+
+        void record(float millis) {
+            int index = (int) (mFrameCount % WINDOW);
+            boolean overBudget = millis > mBudgetMs;
+            boolean tight = millis > mBudgetMs * STEP_UP_HEADROOM;
+
+            if (mSamples == WINDOW) {
+                if (mOverBudget[index]) {
+                    mOverBudgetCount--;
+                }
+                if (mTight[index]) {
+                    mTightCount--;
+                }
+            } else {
+                mSamples++;
+            }
+            mOverBudget[index] = overBudget;
+            mTight[index] = tight;
+            if (overBudget) {
+                mOverBudgetCount++;
+                mOverBudgetFrameCount++;
+            }
+            if (tight) {
+                mTightCount++;
+            }
+            mFrameCount++;
+        }
+
+        /**
+         * Returns whether a full window was recorded with too many samples over budget.
+         */
+        boolean isOverloaded() {
+            return mSamples == WINDOW && mOverBudgetCount > WINDOW * STEP_DOWN_RATIO;
+        }
+
+        /**
+         * Returns whether a full window was recorded with every sample well under budget.
+         */
+        boolean hasHeadroom() {
+            return mSamples == WINDOW && mTightCount == 0;
+        }
+
+        /**
+         * Starts a new window, so that the next decision is only based on new samples.
+         */
+        void reset() {
+            mSamples = 0;
+            mOverBudgetCount = 0;
+            mTightCount = 0;
+            for (int i = 0; i < WINDOW; ++i) {
+                mOverBudget[i] = false;
+                mTight[i] = false;
+            }
+        }
+    }
+
+    /**
+     * @param frameBudgetMs     budget for a frame of the overlay, in milliseconds
+     * @param detectionBudgetMs budget for processing a camera frame, in milliseconds
+     */
+    public FrameBudgetWatchdog(float frameBudgetMs, float detectionBudgetMs) {
+        mFrames = new SampleWindow(frameBudgetMs);
+        mDetections = new SampleWindow(detectionBudgetMs);
+    }
+
+    /**
+     * Changes the budgets, e.g. one and a half refresh intervals of the display for frames, so
+     * that a single dropped frame exceeds it, and the frame interval of the camera for detection.
+     */
+    public void setBudgets(float frameBudgetMs, float detectionBudgetMs) {
+        synchronized (mLock) {
+            mFrames.mBudgetMs = frameBudgetMs;
+            mDetections.mBudgetMs = detectionBudgetMs;
+        }
+    }
+
+    /**
+     * Records how long a frame of the overlay took, which drives the degradation level.  This is
+     * the interval since the previous display frame, or the time spent drawing where frame
+     * intervals are not available.
+     */
+    public void recordFrame(long nanos) {
+        synchronized (mLock) {
+            mFrames.record(nanos / 1000000.0f);
+            if (mLevelPinned) {
+                return;
+            }
+            if (mFrames.isOverloaded() && mLevel < LEVEL_HALF_RATE) {
+                setLevel(mLevel + 1);
+            } else if (mFrames.hasHeadroom() && mLevel > LEVEL_FULL) {
+                setLevel(mLevel - 1);
+            }
+        }
+    }
+
+    /**
+     * Records the time it took to process a camera frame.  This does not affect the degradation
+     * level, see {@link #isDetectionOverBudget()}.
+     */
+    public void recordDetection(long nanos) {
+        synchronized (mLock) {
+            mDetections.record(nanos / 1000000.0f);
+            boolean overBudget;
+            if (mDetections.isOverloaded()) {
+                overBudget = true;
+            } else if (mDetections.hasHeadroom()) {
+                overBudget = false;
+            } else {
+                return;
+            }
+            if (overBudget != mDetectionOverBudget) {
+                Log.i(TAG, "Detection " + (overBudget ? "over" : "back within") + " budget ("
+                        + mDetections.mOverBudgetCount + "/" + WINDOW + " samples over budget)");
+                mDetectionOverBudget = overBudget;
+            }
+        }
+    }
+
+    /**
+     * Holds the degradation level at the supplied level until {@link #unpinLevel()} is called, e.g.
+     * so that a benchmark keeps measuring the rendering path it is set up for.  Samples are still
+     * recorded while the level is pinned.
+     */
+    public void pinLevel(int level) {
+        synchronized (mLock) {
+            mLevel = level;
+            mLevelPinned = true;
+            mFrames.reset();
+        }
+    }
+
+    /**
+     * Lets the degradation level follow the recorded samples again.
+     */
+    public void unpinLevel() {
+        synchronized (mLock) {
+            mLevelPinned = false;
+            mFrames.reset();
+        }
+    }
+
+    /**
+     * Returns the current degradation level, {@link #LEVEL_FULL} if nothing is degraded.
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Returns whether processing camera frames is currently exceeding its budget.  Measures against
+     * this belong on the detection side, e.g. a smaller preview size or a tighter motion gate.
+     */
+    public boolean isDetectionOverBudget() {
+        return mDetectionOverBudget;
+    }
+
+    /**
+     * Returns the number of frame samples recorded.
+     */
+    public long getFrameCount() {
+        return mFrames.mFrameCount;
+    }
+
+    /**
+     * Returns the number of frame samples which exceeded their budget.
+     */
+    public long getOverBudgetFrameCount() {
+        return mFrames.mOverBudgetFrameCount;
+    }
+
+    /**
+     * Returns the number of detection samples recorded.
+     */
+    public long getDetectionCount() {
+        return mDetections.mFrameCount;
+    }
+
+    /**
+     * Returns the number of detection samples which exceeded their budget.
+     */
+    public long getOverBudgetDetectionCount() {
+        return mDetections.mOverBudgetFrameCount;
+    }
+
+    /**
+     * Returns the number of level changes in either direction.
+     */
+    public int getTransitionCount() {
+        return mTransitionCount;
+    }
+
+    /**
+     * Changes the level and starts a new frame window, so that the next decision is only based on
+     * samples taken at the new level.
+     */
+    private void setLevel(int level) {
+        Log.i(TAG, "Degradation level " + mLevel + " -> " + level + " ("
+                + mFrames.mOverBudgetCount + "/" + WINDOW + " frames over budget)");
+        mLevel = level;
+        mTransitionCount++;
+        mFrames.reset();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
+
+import android.view.SurfaceHolder;
+
+import com.google.android.gms.common.images.Size;
+
+import java.io.IOException;
+
+/**
+ * Source of camera frames which shows a preview on a surface and feeds the frames to a detector.
+ * This is the contract {@link CameraSourcePreview} drives, implemented both for the legacy
+ * {@link com.google.android.gms.vision.CameraSource} and for the camera2 API.
+ */
+public interface FrameSource {
+    /**
+     * Opens the camera and starts sending preview frames to the surface and the detector.
+     */
+    void start(SurfaceHolder surfaceHolder) throws IOException;
+
+    /**
+     * Closes the camera and stops sending frames.  The source can be started again afterwards.
+     */
+    void stop();
+
+    /**
+     * Stops the source and releases its resources, including the detector.
+     */
+    void release();
+
+    /**
+     * Returns the preview size that was negotiated with the camera, or null before starting.
+     */
+    Size getPreviewSize();
+
+    /**
+     * Returns the facing of the camera, one of the {@link com.google.android.gms.vision.CameraSource}
+     * facing constants.
+     */
+    int getCameraFacing();
+}
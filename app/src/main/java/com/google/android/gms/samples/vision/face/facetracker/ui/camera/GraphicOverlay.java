@@ -15,15 +15,27 @@
  */
 package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 
+import com.google.android.gms.samples.vision.face.facetracker.util.FrameTracer;
 import com.google.android.gms.vision.CameraSource;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
@@ -42,8 +54,19 @@ import java.util.Set;
  * <li>{@link Graphic#translateX(float)} and {@link Graphic#translateY(float)} adjust the coordinate
  * from the preview's coordinate system to the view coordinate system.</li>
  * </ol>
+ *
+ * When layered rendering is enabled, each graphic is rasterized into its own pooled layer bitmap on
+ * a pool of worker threads, and only graphics which were invalidated since their last layer was
+ * produced are rasterized again.  {@link #onDraw(Canvas)} then only composites finished layers.<p>
+ *
+ * Frame times are reported to a {@link FrameBudgetWatchdog}: the intervals between display frames
+ * while the overlay is being redrawn, or the time spent in onDraw before API 16.  Graphics should
+ * check {@link Graphic#getDegradationLevel()} and simplify their drawing accordingly, while the
+ * overlay itself halves the redraw rate at the highest level.
  */
 public class GraphicOverlay extends View {
+    private static final String TAG = "GraphicOverlay";
+
     private final Object mLock = new Object();
     private int mPreviewWidth;
     private float mWidthScaleFactor = 1.0f;
@@ -52,6 +75,41 @@ public class GraphicOverlay extends View {
     private int mFacing = CameraSource.CAMERA_FACING_BACK;
     private Set<Graphic> mGraphics = new HashSet<>();
 
+    // Maximum number of idle layer bitmaps kept for reuse
+    private static final int MAX_POOLED_LAYERS = 16;
+
+    private volatile boolean mLayeredRendering = false;
+    private ExecutorService mLayerExecutor;
+    private final LayerPool mLayerPool = new LayerPool(MAX_POOLED_LAYERS);
+    // Layers replaced since the last draw, and layers replaced before it.  A layer may still be
+    // referenced by the display list of the frame it was last drawn in, so it only goes back to
+    // the pool once a full frame has been drawn without it.
+    private List<Bitmap> mRetiredLayers = new ArrayList<>();
+    private List<Bitmap> mRetiringLayers = new ArrayList<>();
+
+    // Default budgets for a frame at 60 Hz, one and a half refresh intervals, and for processing a
+    // camera frame at 15 fps
+    private static final float DEFAULT_FRAME_BUDGET_MS = 25.0f;
+    private static final float DEFAULT_DETECTION_BUDGET_MS = 66.0f;
+    // Time after the last draw for which frame intervals are still measured, since the overlay
+    // is only redrawn at the rate of the camera
+    private static final long FRAME_MONITOR_LINGER_NANOS = 250000000L;
+
+    private final FrameBudgetWatchdog mWatchdog =
+            new FrameBudgetWatchdog(DEFAULT_FRAME_BUDGET_MS, DEFAULT_DETECTION_BUDGET_MS);
+    private volatile boolean mSkipNextInvalidate = false;
+    private FrameIntervalMonitor mFrameMonitor;
+
+    // Render times since the last call to resetRenderStats(), guarded by the lock
+    private int mStatsDraws;
+    private long mStatsDrawNanos;
+    private int mStatsLayers;
+    private long mStatsLayerNanos;
+
+    // Event the time until a graphic is drawn is measured from, guarded by the lock
+    private String mFirstGraphicEvent;
+    private long mFirstGraphicSince;
+
     /**
      * Base class for a custom graphics object to be rendered within the graphic overlay.  Subclass
      * this and implement the {@link Graphic#draw(Canvas)} method to define the
@@ -60,6 +118,15 @@ public class GraphicOverlay extends View {
     public static abstract class Graphic {
         private GraphicOverlay mOverlay;
 
+        // Layer state, guarded by the overlay's lock except for the dirty flag, which is set
+        // without it on every update
+        private volatile boolean mLayerDirty = true;
+        private boolean mLayerPending = false;
+        private Bitmap mLayer;
+        private float mLayerLeft;
+        private float mLayerTop;
+        private final RectF mLayerBounds = new RectF();
+
         public Graphic(GraphicOverlay overlay) {
             mOverlay = overlay;
         }
@@ -78,6 +145,33 @@ public class GraphicOverlay extends View {
          */
         public abstract void draw(Canvas canvas);
 
+        /**
+         * Computes the area in view coordinates that {@link Graphic#drawLayer(Canvas)} will touch,
+         * which is used to size the graphic's layer when layered rendering is enabled.  The
+         * default implementation returns false, meaning that the whole overlay is used.<p>
+         *
+         * Graphics which are updated concurrently should compute the bounds from a snapshot of
+         * their state, and draw that same snapshot in the following call to
+         * {@link Graphic#drawLayer(Canvas)}.
+         *
+         * @param bounds receives the bounds of the graphic
+         * @return true if bounds were set
+         */
+        public boolean getLayerBounds(RectF bounds) {
+            return false;
+        }
+
+        /**
+         * Draws the graphic into its layer.  Called on a worker thread right after
+         * {@link Graphic#getLayerBounds(RectF)}.  The default implementation calls
+         * {@link Graphic#draw(Canvas)}.
+         *
+         * @param canvas canvas of the layer, translated to view coordinates
+         */
+        public void drawLayer(Canvas canvas) {
+            draw(canvas);
+        }
+
         /**
          * Adjusts a horizontal value of the supplied value from the preview scale to the view
          * scale.
@@ -113,13 +207,27 @@ public class GraphicOverlay extends View {
             return scaleY(y);
         }
 
+        /**
+         * Returns the current degradation level of the overlay, one of the levels defined by
+         * {@link FrameBudgetWatchdog}.
+         */
+        public int getDegradationLevel() {
+            return mOverlay.mWatchdog.getLevel();
+        }
+
+        /**
+         * Marks the graphic as changed and triggers a redraw of the overlay.
+         */
         public void postInvalidate() {
-            mOverlay.postInvalidate();
+            mOverlay.invalidateGraphic(this);
         }
     }
 
     public GraphicOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mFrameMonitor = new FrameIntervalMonitor();
+        }
     }
 
     /**
@@ -127,19 +235,26 @@ public class GraphicOverlay extends View {
      */
     public void clear() {
         synchronized (mLock) {
+            for (Graphic graphic : mGraphics) {
+                releaseLayer(graphic);
+            }
             mGraphics.clear();
         }
         postInvalidate();
     }
 
     /**
-     * Adds a graphic to the overlay.
+     * Adds a graphic to the overlay.  Adding a graphic which is already shown does not redraw the
+     * overlay, use {@link Graphic#postInvalidate()} for changes of the graphic.
      */
     public void add(Graphic graphic) {
+        boolean added;
         synchronized (mLock) {
-            mGraphics.add(graphic);
+            added = mGraphics.add(graphic);
+        }
+        if (added) {
+            postInvalidate();
         }
-        postInvalidate();
     }
 
     /**
@@ -147,7 +262,9 @@ public class GraphicOverlay extends View {
      */
     public void remove(Graphic graphic) {
         synchronized (mLock) {
-            mGraphics.remove(graphic);
+            if (mGraphics.remove(graphic)) {
+                releaseLayer(graphic);
+            }
         }
         postInvalidate();
     }
@@ -161,10 +278,145 @@ public class GraphicOverlay extends View {
             mPreviewWidth = previewWidth;
             mPreviewHeight = previewHeight;
             mFacing = facing;
+            markAllDirty();
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Enables or disables rasterizing each graphic into its own layer on a pool of worker
+     * threads.  The number of workers scales with the number of available cores.
+     */
+    public void setLayeredRendering(boolean enabled) {
+        synchronized (mLock) {
+            if (enabled == mLayeredRendering) {
+                return;
+            }
+            mLayeredRendering = enabled;
+            if (enabled) {
+                int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+                mLayerExecutor = Executors.newFixedThreadPool(workers);
+                markAllDirty();
+            } else {
+                shutdownLayers();
+            }
         }
         postInvalidate();
     }
 
+    /**
+     * Returns whether graphics are rasterized into their own layers.
+     */
+    public boolean isLayeredRendering() {
+        return mLayeredRendering;
+    }
+
+    /**
+     * Marks a graphic as changed and triggers a redraw.  This is called from the detector thread
+     * on every update, so it does not take the lock, which is held for all of onDraw.
+     */
+    void invalidateGraphic(Graphic graphic) {
+        if (mLayeredRendering) {
+            graphic.mLayerDirty = true;
+        }
+
+        // Only redraw for every other update when at the lowest degradation level.  Concurrent
+        // updates may occasionally skip one redraw too few or too many, which is harmless.
+        if (mWatchdog.getLevel() >= FrameBudgetWatchdog.LEVEL_HALF_RATE) {
+            mSkipNextInvalidate = !mSkipNextInvalidate;
+            if (mSkipNextInvalidate) {
+                return;
+            }
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Logs the time from an event until a graphic is next drawn, e.g. from a camera restart to the
+     * first mask.  Graphics which are already shown are drawn right away, so the overlay should be
+     * cleared first.
+     *
+     * @param event       name of the event, used in the log
+     * @param sinceMillis {@link SystemClock#elapsedRealtime()} at which the event happened
+     */
+    public void timeFirstGraphic(String event, long sinceMillis) {
+        synchronized (mLock) {
+            mFirstGraphicEvent = event;
+            mFirstGraphicSince = sinceMillis;
+        }
+    }
+
+    /**
+     * Returns the watchdog which tracks draw and detection times against the frame budget.
+     */
+    public FrameBudgetWatchdog getFrameBudgetWatchdog() {
+        return mWatchdog;
+    }
+
+    /**
+     * Starts a new measurement of the render times.
+     */
+    public void resetRenderStats() {
+        synchronized (mLock) {
+            mStatsDraws = 0;
+            mStatsDrawNanos = 0;
+            mStatsLayers = 0;
+            mStatsLayerNanos = 0;
+        }
+    }
+
+    /**
+     * Returns the number of times the overlay was drawn since the last call to
+     * {@link #resetRenderStats()}.
+     */
+    public int getStatsDrawCount() {
+        synchronized (mLock) {
+            return mStatsDraws;
+        }
+    }
+
+    /**
+     * Returns the average time spent in onDraw, in milliseconds.  With layered rendering this is
+     * only the time to composite the finished layers.
+     */
+    public float getAverageDrawMillis() {
+        synchronized (mLock) {
+            return (mStatsDraws == 0) ? 0 : mStatsDrawNanos / 1000000.0f / mStatsDraws;
+        }
+    }
+
+    /**
+     * Returns the number of layers rasterized since the last call to {@link #resetRenderStats()}.
+     */
+    public int getStatsLayerCount() {
+        synchronized (mLock) {
+            return mStatsLayers;
+        }
+    }
+
+    /**
+     * Returns the average time a worker spent rasterizing a layer, in milliseconds.
+     */
+    public float getAverageLayerMillis() {
+        synchronized (mLock) {
+            return (mStatsLayers == 0) ? 0 : mStatsLayerNanos / 1000000.0f / mStatsLayers;
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mFrameMonitor != null) {
+            mFrameMonitor.stop();
+        }
+        synchronized (mLock) {
+            if (mLayeredRendering) {
+                mLayeredRendering = false;
+                shutdownLayers();
+            }
+        }
+    }
+
     /**
      * Draws the overlay with its associated graphic objects.
      */
@@ -172,15 +424,223 @@ public class GraphicOverlay extends View {
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
 
+        int frameId = FrameTracer.getCurrentFrameId();
+        FrameTracer.begin("onDraw", frameId);
+        long start = System.nanoTime();
         synchronized (mLock) {
-            if ((mPreviewWidth != 0) && (mPreviewHeight != 0)) {
-                mWidthScaleFactor = (float) canvas.getWidth() / (float) mPreviewWidth;
-                mHeightScaleFactor = (float) canvas.getHeight() / (float) mPreviewHeight;
+            drawGraphics(canvas);
+            mStatsDraws++;
+            mStatsDrawNanos += System.nanoTime() - start;
+        }
+        if (mFrameMonitor != null) {
+            mFrameMonitor.onDraw();
+        } else {
+            mWatchdog.recordFrame(System.nanoTime() - start);
+        }
+        FrameTracer.end("onDraw", frameId);
+    }
+
+    /**
+     * Draws or composites the graphics.  Must be called with the lock held.
+     */
+    private void drawGraphics(Canvas canvas) {
+        if ((mPreviewWidth != 0) && (mPreviewHeight != 0)) {
+            float widthScaleFactor = (float) canvas.getWidth() / (float) mPreviewWidth;
+            float heightScaleFactor = (float) canvas.getHeight() / (float) mPreviewHeight;
+            if (widthScaleFactor != mWidthScaleFactor
+                    || heightScaleFactor != mHeightScaleFactor) {
+                mWidthScaleFactor = widthScaleFactor;
+                mHeightScaleFactor = heightScaleFactor;
+                markAllDirty();
             }
+        }
 
+        if (!mLayeredRendering) {
             for (Graphic graphic : mGraphics) {
                 graphic.draw(canvas);
             }
+            if (!mGraphics.isEmpty()) {
+                onGraphicDrawn();
+            }
+            return;
+        }
+
+        boolean drawn = false;
+        for (Graphic graphic : mGraphics) {
+            if (graphic.mLayerDirty && !graphic.mLayerPending) {
+                scheduleLayer(graphic);
+            }
+            if (graphic.mLayer != null) {
+                canvas.drawBitmap(graphic.mLayer, graphic.mLayerLeft, graphic.mLayerTop, null);
+                drawn = true;
+            }
+        }
+        if (drawn) {
+            onGraphicDrawn();
+        }
+
+        // Layers retired before the previous draw are referenced by neither frame any more
+        for (Bitmap layer : mRetiringLayers) {
+            mLayerPool.release(layer);
+        }
+        mRetiringLayers.clear();
+        List<Bitmap> retired = mRetiringLayers;
+        mRetiringLayers = mRetiredLayers;
+        mRetiredLayers = retired;
+    }
+
+    /**
+     * Reports the intervals between display frames to the watchdog while the overlay is being
+     * redrawn.  With hardware acceleration, onDraw only records a display list, so its duration
+     * hardly changes with the cost of a frame, while the interval grows with every dropped frame.
+     * Only used from the main thread.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FrameIntervalMonitor implements Choreographer.FrameCallback {
+        private long mLastDrawNanos;
+        private long mLastFrameNanos;
+        private boolean mPosted;
+
+        void onDraw() {
+            mLastDrawNanos = System.nanoTime();
+            if (!mPosted) {
+                mPosted = true;
+                mLastFrameNanos = 0;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        void stop() {
+            if (mPosted) {
+                mPosted = false;
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mLastFrameNanos != 0) {
+                mWatchdog.recordFrame(frameTimeNanos - mLastFrameNanos);
+            }
+            mLastFrameNanos = frameTimeNanos;
+            if (frameTimeNanos - mLastDrawNanos < FRAME_MONITOR_LINGER_NANOS) {
+                Choreographer.getInstance().postFrameCallback(this);
+            } else {
+                mPosted = false;
+            }
+        }
+    }
+
+    /**
+     * Logs the time to the first graphic, if it is being measured.  Must be called with the lock
+     * held.
+     */
+    private void onGraphicDrawn() {
+        if (mFirstGraphicEvent != null) {
+            Log.i(TAG, mFirstGraphicEvent + " to first graphic drawn: "
+                    + (SystemClock.elapsedRealtime() - mFirstGraphicSince) + " ms");
+            mFirstGraphicEvent = null;
+        }
+    }
+
+    //==============================================================================================
+    // Layered Rendering
+    //==============================================================================================
+
+    /**
+     * Queues rasterization of a graphic into a new layer.  Must be called with the lock held.
+     */
+    private void scheduleLayer(final Graphic graphic) {
+        graphic.mLayerDirty = false;
+        graphic.mLayerPending = true;
+        final int width = getWidth();
+        final int height = getHeight();
+
+        mLayerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                RectF bounds = graphic.mLayerBounds;
+                if (!graphic.getLayerBounds(bounds)) {
+                    bounds.set(0, 0, width, height);
+                }
+                // Graphics entirely outside the overlay get no layer at all
+                if (!bounds.intersect(0, 0, width, height)) {
+                    bounds.setEmpty();
+                }
+
+                Bitmap layer = null;
+                if (!bounds.isEmpty()) {
+                    layer = mLayerPool.acquire((int) Math.ceil(bounds.width()),
+                            (int) Math.ceil(bounds.height()));
+                    Canvas layerCanvas = new Canvas(layer);
+                    layerCanvas.translate(-bounds.left, -bounds.top);
+                    graphic.drawLayer(layerCanvas);
+                }
+
+                synchronized (mLock) {
+                    graphic.mLayerPending = false;
+                    mStatsLayers++;
+                    mStatsLayerNanos += System.nanoTime() - start;
+                    if (!mLayeredRendering || !mGraphics.contains(graphic)) {
+                        // Never drawn, so the layer can be reused right away
+                        mLayerPool.release(layer);
+                        return;
+                    }
+                    retireLayer(graphic.mLayer);
+                    graphic.mLayer = layer;
+                    graphic.mLayerLeft = bounds.left;
+                    graphic.mLayerTop = bounds.top;
+                }
+                postInvalidate();
+            }
+        });
+    }
+
+    /**
+     * Detaches the layer from a graphic, returning it to the pool once no frame draws it any more.
+     * Must be called with the lock held.
+     */
+    private void releaseLayer(Graphic graphic) {
+        retireLayer(graphic.mLayer);
+        graphic.mLayer = null;
+        graphic.mLayerDirty = true;
+    }
+
+    /**
+     * Queues a layer which is no longer drawn for release after the next frames.  Must be called
+     * with the lock held.
+     */
+    private void retireLayer(Bitmap layer) {
+        if (layer != null) {
+            mRetiredLayers.add(layer);
+        }
+    }
+
+    /**
+     * Marks every graphic for re-rasterization.  Must be called with the lock held.
+     */
+    private void markAllDirty() {
+        for (Graphic graphic : mGraphics) {
+            graphic.mLayerDirty = true;
+        }
+    }
+
+    /**
+     * Stops the layer workers and frees all layers.  Must be called with the lock held.
+     */
+    private void shutdownLayers() {
+        if (mLayerExecutor != null) {
+            mLayerExecutor.shutdownNow();
+            mLayerExecutor = null;
+        }
+        for (Graphic graphic : mGraphics) {
+            graphic.mLayer = null;
+            graphic.mLayerDirty = true;
         }
+        // Left to the garbage collector, since the last frame may still reference them
+        mRetiredLayers.clear();
+        mRetiringLayers.clear();
+        mLayerPool.clear();
     }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of layer bitmaps used by {@link GraphicOverlay} when rendering graphics into their own
+ * layers.  Sizes are rounded up to a fixed granularity so that a face moving or scaling slightly
+ * between frames can keep reusing the same bitmap instead of allocating a new one.
+ */
+class LayerPool {
+    // Layer sizes are rounded up to a multiple of this value to improve reuse
+    private static final int SIZE_GRANULARITY = 64;
+
+    private final int mMaxPooled;
+    private final List<Bitmap> mFree = new ArrayList<>();
+
+    LayerPool(int maxPooled) {
+        mMaxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a cleared bitmap that is at least as large as the requested size.
+     */
+    synchronized Bitmap acquire(int width, int height) {
+        int roundedWidth = roundUp(width);
+        int roundedHeight = roundUp(height);
+
+        for (int i = 0; i < mFree.size(); ++i) {
+            Bitmap bitmap = mFree.get(i);
+            if (bitmap.getWidth() == roundedWidth && bitmap.getHeight() == roundedHeight) {
+                mFree.remove(i);
+                bitmap.eraseColor(0);
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(roundedWidth, roundedHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a bitmap to the pool.  The bitmap is cleared and drawn into by the next caller of
+     * {@link #acquire(int, int)}, so it must no longer be referenced by any frame being drawn.
+     * Bitmaps beyond the pool capacity are left to the garbage collector rather than recycled.
+     */
+    synchronized void release(Bitmap bitmap) {
+        if (bitmap != null && mFree.size() < mMaxPooled) {
+            mFree.add(bitmap);
+        }
+    }
+
+    /**
+     * Drops every pooled bitmap.
+     */
+    synchronized void clear() {
+        mFree.clear();
+    }
+
+    private static int roundUp(int size) {
+        int rounded = ((Math.max(size, 1) + SIZE_GRANULARITY - 1) / SIZE_GRANULARITY);
+        return rounded * SIZE_GRANULARITY;
+    }
+}
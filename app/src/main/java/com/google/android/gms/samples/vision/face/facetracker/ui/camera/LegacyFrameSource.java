@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
+
+import android.os.SystemClock;
+import android.view.SurfaceHolder;
+
+import com.google.android.gms.common.images.Size;
+import com.google.android.gms.vision.CameraSource;
+
+import java.io.IOException;
+
+/**
+ * Frame source backed by the {@link CameraSource} of the vision API, which converts frames to NV21
+ * internally.
+ */
+public class LegacyFrameSource implements FrameSource {
+    private final CameraSource mCameraSource;
+    private final long mFrameTimeBaseMillis;
+
+    /**
+     * Wraps a camera source.  This should happen right after the camera source was built, see
+     * {@link #getFrameTimeBaseMillis()}.
+     */
+    public LegacyFrameSource(CameraSource cameraSource) {
+        mCameraSource = cameraSource;
+        mFrameTimeBaseMillis = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns an estimate of the {@link SystemClock#elapsedRealtime()} that the timestamps of the
+     * frames are relative to.  {@link CameraSource} stamps each frame when the camera delivers it,
+     * relative to the time it was built, which this source takes to be the time it was created.
+     */
+    public long getFrameTimeBaseMillis() {
+        return mFrameTimeBaseMillis;
+    }
+
+    @Override
+    public void start(SurfaceHolder surfaceHolder) throws IOException {
+        mCameraSource.start(surfaceHolder);
+    }
+
+    @Override
+    public void stop() {
+        mCameraSource.stop();
+    }
+
+    @Override
+    public void release() {
+        mCameraSource.release();
+    }
+
+    @Override
+    public Size getPreviewSize() {
+        return mCameraSource.getPreviewSize();
+    }
+
+    @Override
+    public int getCameraFacing() {
+        return mCameraSource.getCameraFacing();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands the luma plane of YUV images to a detector without converting the image to NV21.  When the
+ * plane is tightly packed, its buffer is passed on as is; otherwise the rows are packed into a
+ * reused buffer.  Every image is closed as soon as the sink returns, so that the producer can keep
+ * a small bounded number of images in flight.<p>
+ *
+ * Only plain Java types are used here, so the dispatcher can be exercised with a stand-in
+ * {@link PlaneImage} producer on the JVM.  Tracing the arrival of images is left to the producer
+ * for the same reason.<p>
+ *
+ * The bytes an NV21 conversion would have copied are an estimate from the image size, not a
+ * measurement of the legacy path.
+ */
+public class LumaFrameDispatcher {
+    /**
+     * Receiver of the luma planes, typically wrapping them in a frame for a detector.
+     */
+    public interface LumaSink {
+        /**
+         * Called with a tightly packed luma plane of width * height bytes.  The buffer is only
+         * valid for the duration of the call.
+         */
+        void onLuma(ByteBuffer luma, int width, int height, long timestampNanos, int frameId);
+    }
+
+    private final LumaSink mSink;
+
+    private ByteBuffer mPackedLuma;
+    private int mNextFrameId;
+
+    private volatile long mZeroCopyFrames;
+    private volatile long mCopiedFrames;
+    private volatile long mEstimatedBytesNotCopied;
+    private volatile long mLatencyNanos;
+    private volatile long mDispatchedFrames;
+
+    public LumaFrameDispatcher(LumaSink sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Passes the luma plane of the image to the sink and closes the image.
+     *
+     * @param image        image to dispatch
+     * @param arrivalNanos {@link System#nanoTime()} at which the image became available
+     */
+    public void dispatch(PlaneImage image, long arrivalNanos) {
+        try {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int rowStride = image.getLumaRowStride();
+            int pixelStride = image.getLumaPixelStride();
+            ByteBuffer plane = image.getLumaPlane();
+
+            // An NV21 conversion would have copied at least the luma plane and both chroma planes
+            long nv21Bytes = width * height * 3L / 2;
+            ByteBuffer luma;
+            if (rowStride == width && pixelStride == 1) {
+                luma = plane;
+                mZeroCopyFrames++;
+                mEstimatedBytesNotCopied += nv21Bytes;
+            } else {
+                luma = pack(plane, width, height, rowStride, pixelStride);
+                mCopiedFrames++;
+                mEstimatedBytesNotCopied += nv21Bytes - width * height;
+            }
+
+            mSink.onLuma(luma, width, height, image.getTimestamp(), mNextFrameId++);
+            mLatencyNanos += System.nanoTime() - arrivalNanos;
+            mDispatchedFrames++;
+        } finally {
+            image.close();
+        }
+    }
+
+    /**
+     * Returns the number of images whose luma plane was passed on without copying.
+     */
+    public long getZeroCopyFrameCount() {
+        return mZeroCopyFrames;
+    }
+
+    /**
+     * Returns the number of images whose luma plane had to be packed first.
+     */
+    public long getCopiedFrameCount() {
+        return mCopiedFrames;
+    }
+
+    /**
+     * Returns an estimate of the bytes an NV21 conversion would have copied on top of what was
+     * copied, assuming that it copies every plane once.
+     */
+    public long getEstimatedBytesNotCopied() {
+        return mEstimatedBytesNotCopied;
+    }
+
+    /**
+     * Returns the id the next dispatched image will get.  Only valid on the thread dispatching
+     * images.
+     */
+    public int getNextFrameId() {
+        return mNextFrameId;
+    }
+
+    /**
+     * Returns the average time from an image becoming available until the sink returned, in
+     * milliseconds.
+     */
+    public float getAverageLatencyMillis() {
+        long frames = mDispatchedFrames;
+        if (frames == 0) {
+            return 0;
+        }
+        return mLatencyNanos / 1000000.0f / frames;
+    }
+
+    /**
+     * Packs a strided luma plane into a reused buffer of width * height bytes.
+     */
+    private ByteBuffer pack(ByteBuffer plane, int width, int height, int rowStride,
+                            int pixelStride) {
+        int size = width * height;
+        if (mPackedLuma == null || mPackedLuma.capacity() < size) {
+            mPackedLuma = ByteBuffer.allocateDirect(size);
+        }
+        ByteBuffer packed = mPackedLuma;
+        packed.clear();
+
+        int base = plane.position();
+        ByteBuffer source = plane.duplicate();
+        for (int row = 0; row < height; ++row) {
+            int offset = base + row * rowStride;
+            if (pixelStride == 1) {
+                source.clear();
+                source.position(offset);
+                source.limit(offset + width);
+                packed.put(source);
+            } else {
+                for (int column = 0; column < width; ++column) {
+                    packed.put(plane.get(offset + column * pixelStride));
+                }
+            }
+        }
+        packed.flip();
+        return packed;
+    }
+}
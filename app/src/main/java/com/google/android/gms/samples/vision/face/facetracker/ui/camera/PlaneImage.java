@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal view of a YUV image, as far as detection needs it: the luma plane and its layout.  This
+ * decouples {@link LumaFrameDispatcher} from {@link android.media.Image}, so that it can be driven
+ * by a stand-in image producer off the device.
+ */
+public interface PlaneImage {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Returns the luma (Y) plane.  The buffer is only valid until {@link #close()} is called.
+     */
+    ByteBuffer getLumaPlane();
+
+    int getLumaRowStride();
+
+    int getLumaPixelStride();
+
+    /**
+     * Returns the capture time of the image, in nanoseconds.
+     */
+    long getTimestamp();
+
+    /**
+     * Returns the image to its producer.
+     */
+    void close();
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.util;
+
+import android.os.Process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low overhead tracer which records begin, end and instant events tagged with a frame id into a
+ * preallocated ring buffer.  The ring can be written out as a Chrome trace-event JSON file, which
+ * can be opened in chrome://tracing to see where the pipeline blocked for a given frame.<p>
+ *
+ * Recording is off by default.  While disabled, every recording call returns after a single
+ * volatile read.  Event names must be constant strings, since only the reference is stored.<p>
+ *
+ * {@link #stop()} copies the recorded events out of the ring, so that they can be written in the
+ * background while a new recording already reuses the ring.
+ */
+public final class FrameTracer {
+    // Number of events kept in the ring buffer
+    private static final int CAPACITY = 16384;
+
+    private static final char PHASE_BEGIN = 'B';
+    private static final char PHASE_END = 'E';
+    private static final char PHASE_INSTANT = 'i';
+
+    private static volatile boolean sEnabled = false;
+    private static volatile int sCurrentFrameId = -1;
+
+    private static final AtomicLong sCursor = new AtomicLong();
+    private static final String[] sNames = new String[CAPACITY];
+    private static final char[] sPhases = new char[CAPACITY];
+    private static final long[] sTimestamps = new long[CAPACITY];
+    private static final int[] sFrameIds = new int[CAPACITY];
+    private static final int[] sThreadIds = new int[CAPACITY];
+
+    private FrameTracer() {
+    }
+
+    /**
+     * Starts or stops recording.  Starting discards any previously recorded events, so use
+     * {@link #stop()} to stop a recording that should be kept.
+     */
+    public static void setEnabled(boolean enabled) {
+        if (enabled && !sEnabled) {
+            sCursor.set(0);
+        }
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Sets the id of the most recent camera frame, for events which are not tied to a frame of
+     * their own (e.g., drawing the overlay).
+     */
+    public static void setCurrentFrameId(int frameId) {
+        sCurrentFrameId = frameId;
+    }
+
+    public static int getCurrentFrameId() {
+        return sCurrentFrameId;
+    }
+
+    /**
+     * Records the start of a named slice on the calling thread.
+     */
+    public static void begin(String name, int frameId) {
+        if (sEnabled) {
+            record(name, PHASE_BEGIN, frameId);
+        }
+    }
+
+    /**
+     * Records the end of a named slice on the calling thread.
+     */
+    public static void end(String name, int frameId) {
+        if (sEnabled) {
+            record(name, PHASE_END, frameId);
+        }
+    }
+
+    /**
+     * Records a point in time event on the calling thread.
+     */
+    public static void instant(String name, int frameId) {
+        if (sEnabled) {
+            record(name, PHASE_INSTANT, frameId, System.nanoTime());
+        }
+    }
+
+    /**
+     * Records a point in time event on the calling thread which happened earlier, at the supplied
+     * {@link System#nanoTime()}.
+     */
+    public static void instant(String name, int frameId, long timestampNanos) {
+        if (sEnabled) {
+            record(name, PHASE_INSTANT, frameId, timestampNanos);
+        }
+    }
+
+    private static void record(String name, char phase, int frameId) {
+        record(name, phase, frameId, System.nanoTime());
+    }
+
+    private static void record(String name, char phase, int frameId, long timestampNanos) {
+        int index = (int) (sCursor.getAndIncrement() % CAPACITY);
+        sNames[index] = name;
+        sPhases[index] = phase;
+        sTimestamps[index] = timestampNanos;
+        sFrameIds[index] = frameId;
+        sThreadIds[index] = Process.myTid();
+    }
+
+    /**
+     * Stops recording and returns a copy of the recorded events, oldest first.  Events recorded
+     * concurrently with stopping may be partially included.
+     */
+    public static Trace stop() {
+        sEnabled = false;
+        long end = sCursor.get();
+        int count = (int) Math.min(end, CAPACITY);
+        Trace trace = new Trace(count);
+        for (int i = 0; i < count; ++i) {
+            int index = (int) ((end - count + i) % CAPACITY);
+            trace.mNames[i] = sNames[index];
+            trace.mPhases[i] = sPhases[index];
+            trace.mTimestamps[i] = sTimestamps[index];
+            trace.mFrameIds[i] = sFrameIds[index];
+            trace.mThreadIds[i] = sThreadIds[index];
+        }
+        return trace;
+    }
+
+    /**
+     * Events copied out of the ring by {@link #stop()}.
+     */
+    public static final class Trace {
+        private final String[] mNames;
+        private final char[] mPhases;
+        private final long[] mTimestamps;
+        private final int[] mFrameIds;
+        private final int[] mThreadIds;
+
+        private Trace(int count) {
+            mNames = new String[count];
+            mPhases = new char[count];
+            mTimestamps = new long[count];
+            mFrameIds = new int[count];
+            mThreadIds = new int[count];
+        }
+
+        /**
+         * Writes the events to the supplied file in the Chrome trace-event format.
+         */
+        public void write(File file) throws IOException {
+            int pid = Process.myPid();
+
+            Writer writer = new BufferedWriter(new FileWriter(file));
+            try {
+                writer.write("{\"traceEvents\":[");
+                for (int i = 0; i < mNames.length; ++i) {
+                    if (i != 0) {
+                        writer.write(",");
+                    }
+                    writer.write("\n{\"name\":\"");
+                    writer.write(mNames[i]);
+                    writer.write("\",\"ph\":\"");
+                    writer.write(mPhases[i]);
+                    if (mPhases[i] == PHASE_INSTANT) {
+                        writer.write("\",\"s\":\"t");
+                    }
+                    writer.write("\",\"ts\":");
+                    writer.write(Double.toString(mTimestamps[i] / 1000.0));
+                    writer.write(",\"pid\":");
+                    writer.write(Integer.toString(pid));
+                    writer.write(",\"tid\":");
+                    writer.write(Integer.toString(mThreadIds[i]));
+                    writer.write(",\"args\":{\"frame\":");
+                    writer.write(Integer.toString(mFrameIds[i]));
+                    writer.write("}}");
+                }
+                writer.write("\n]}\n");
+            } finally {
+                writer.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.gms.samples.vision.face.facetracker.ui.camera;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives {@link LumaFrameDispatcher} with stand-in images on the JVM.
+ */
+public class LumaFrameDispatcherTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 3;
+    // Value of the padding bytes, which must never reach the sink
+    private static final byte PADDING = (byte) 0xEE;
+
+    private RecordingSink mSink;
+    private LumaFrameDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mSink = new RecordingSink();
+        mDispatcher = new LumaFrameDispatcher(mSink);
+    }
+
+    @Test
+    public void packedPlaneIsPassedWithoutCopying() {
+        FakeImage image = new FakeImage(WIDTH, HEIGHT, WIDTH, 1);
+
+        mDispatcher.dispatch(image, System.nanoTime());
+
+        assertSame(image.mPlane, mSink.mLastBuffer);
+        assertArrayEquals(expectedLuma(), mSink.mLastLuma);
+        assertEquals(WIDTH, mSink.mLastWidth);
+        assertEquals(HEIGHT, mSink.mLastHeight);
+        assertTrue(image.mClosed);
+        assertEquals(1, mDispatcher.getZeroCopyFrameCount());
+        assertEquals(0, mDispatcher.getCopiedFrameCount());
+        assertEquals(WIDTH * HEIGHT * 3 / 2, mDispatcher.getEstimatedBytesNotCopied());
+    }
+
+    @Test
+    public void paddedRowsArePacked() {
+        FakeImage image = new FakeImage(WIDTH, HEIGHT, WIDTH + 3, 1);
+
+        mDispatcher.dispatch(image, System.nanoTime());
+
+        assertNotSame(image.mPlane, mSink.mLastBuffer);
+        assertArrayEquals(expectedLuma(), mSink.mLastLuma);
+        assertTrue(image.mClosed);
+        assertEquals(0, mDispatcher.getZeroCopyFrameCount());
+        assertEquals(1, mDispatcher.getCopiedFrameCount());
+        assertEquals(WIDTH * HEIGHT / 2, mDispatcher.getEstimatedBytesNotCopied());
+    }
+
+    @Test
+    public void interleavedPixelsArePacked() {
+        FakeImage image = new FakeImage(WIDTH, HEIGHT, WIDTH * 2, 2);
+
+        mDispatcher.dispatch(image, System.nanoTime());
+
+        assertArrayEquals(expectedLuma(), mSink.mLastLuma);
+        assertTrue(image.mClosed);
+        assertEquals(1, mDispatcher.getCopiedFrameCount());
+    }
+
+    @Test
+    public void packingReusesItsBuffer() {
+        mDispatcher.dispatch(new FakeImage(WIDTH, HEIGHT, WIDTH + 1, 1), System.nanoTime());
+        ByteBuffer first = mSink.mLastBuffer;
+        mDispatcher.dispatch(new FakeImage(WIDTH, HEIGHT, WIDTH + 1, 1), System.nanoTime());
+
+        assertSame(first, mSink.mLastBuffer);
+        assertArrayEquals(expectedLuma(), mSink.mLastLuma);
+    }
+
+    @Test
+    public void frameIdsIncrease() {
+        mDispatcher.dispatch(new FakeImage(WIDTH, HEIGHT, WIDTH, 1), System.nanoTime());
+        mDispatcher.dispatch(new FakeImage(WIDTH, HEIGHT, WIDTH + 1, 1), System.nanoTime());
+
+        assertEquals(1, mSink.mLastFrameId);
+        assertEquals(2, mDispatcher.getNextFrameId());
+        assertEquals(2, mSink.mFrames);
+        assertEquals(1, mDispatcher.getZeroCopyFrameCount());
+        assertEquals(1, mDispatcher.getCopiedFrameCount());
+        assertTrue(mDispatcher.getAverageLatencyMillis() >= 0);
+    }
+
+    @Test
+    public void imageIsClosedWhenSinkThrows() {
+        mSink.mFailure = new IllegalStateException("detector failed");
+        FakeImage image = new FakeImage(WIDTH, HEIGHT, WIDTH, 1);
+
+        try {
+            mDispatcher.dispatch(image, System.nanoTime());
+            fail("Expected the sink's exception to propagate");
+        } catch (IllegalStateException e) {
+            assertSame(mSink.mFailure, e);
+        }
+        assertTrue(image.mClosed);
+        assertEquals(0, mDispatcher.getAverageLatencyMillis(), 0);
+    }
+
+    /**
+     * Returns the tightly packed luma values {@link FakeImage} fills its visible pixels with.
+     */
+    private static byte[] expectedLuma() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < luma.length; ++i) {
+            luma[i] = (byte) i;
+        }
+        return luma;
+    }
+
+    /**
+     * Stand-in for a camera image, with a luma plane in the supplied layout.  Visible pixels are
+     * numbered in row order, everything in between is padding.
+     */
+    private static class FakeImage implements PlaneImage {
+        private final int mWidth;
+        private final int mHeight;
+        private final int mRowStride;
+        private final int mPixelStride;
+        private final ByteBuffer mPlane;
+        private boolean mClosed;
+
+        FakeImage(int width, int height, int rowStride, int pixelStride) {
+            mWidth = width;
+            mHeight = height;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+
+            // Like camera planes, the last row is not padded to the full stride
+            int size = (height - 1) * rowStride + (width - 1) * pixelStride + 1;
+            mPlane = ByteBuffer.allocateDirect(size);
+            for (int i = 0; i < size; ++i) {
+                mPlane.put(i, PADDING);
+            }
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    mPlane.put(y * rowStride + x * pixelStride, (byte) (y * width + x));
+                }
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public ByteBuffer getLumaPlane() {
+            return mPlane;
+        }
+
+        @Override
+        public int getLumaRowStride() {
+            return mRowStride;
+        }
+
+        @Override
+        public int getLumaPixelStride() {
+            return mPixelStride;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+    }
+
+    /**
+     * Sink which copies out every luma plane it receives, or throws if told to.
+     */
+    private static class RecordingSink implements LumaFrameDispatcher.LumaSink {
+        private RuntimeException mFailure;
+        private ByteBuffer mLastBuffer;
+        private byte[] mLastLuma;
+        private int mLastWidth;
+        private int mLastHeight;
+        private int mLastFrameId;
+        private int mFrames;
+
+        @Override
+        public void onLuma(ByteBuffer luma, int width, int height, long timestampNanos,
+                           int frameId) {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            mLastBuffer = luma;
+            mLastLuma = new byte[width * height];
+            luma.duplicate().get(mLastLuma);
+            mLastWidth = width;
+            mLastHeight = height;
+            mLastFrameId = frameId;
+            mFrames++;
+        }
+    }
+}